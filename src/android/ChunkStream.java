@@ -0,0 +1,290 @@
+/**
+ * Chunk Stream
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件内容分块推送
+ * 文件按 chunkSize 分块，以 ArrayBuffer 逐块推送给 JS；
+ * JS 每确认一块才允许继续推送，未确认的块最多 window 个。
+ * 每读取推送一块提交一次线程池任务，窗口用完后不再提交，由 JS 的确认提交下一块，
+ * 等待确认期间不占用线程；只在读取每块时持有会话使用权
+ */
+class ChunkStream {
+
+    // 等待 JS 确认的最长时间（秒），超时视为 JS 端已放弃
+    private static final long ACK_TIMEOUT = 60;
+
+    // 确认超时检查，所有流共用
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "samba-stream-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private String id;
+    private SambaFile file;
+    private int chunkSize;
+    private Executor executor;
+    private SessionPool sessionPool;
+    private Runnable onClose;
+
+    private CallbackContext callback;
+    private InputStream in;
+    private byte[] chunk;
+
+    // 以下由 this 保护
+    private int credits;
+    private boolean running;
+    private boolean closed;
+    private boolean cancelled;
+    private String error;
+    private long lastAck;
+
+    /**
+     * @param String id 流编号
+     * @param SambaFile file
+     * @param int chunkSize 每块字节数
+     * @param int window 未确认块数上限
+     * @param Executor executor 读取推送每一块的线程池
+     * @param SessionPool sessionPool
+     * @param Runnable onClose 推送结束（完成、取消或失败）后调用
+     */
+    public ChunkStream(String id, SambaFile file, int chunkSize, int window, Executor executor,
+        SessionPool sessionPool, Runnable onClose) {
+
+        this.id = id;
+        this.file = file;
+        this.chunkSize = Math.max(chunkSize, 1);
+        this.credits = Math.max(window, 1);
+        this.executor = executor;
+        this.sessionPool = sessionPool;
+        this.onClose = onClose;
+    }
+
+    /**
+     * 开始推送，先推送 { id, size }，再推送各块，最后推送 { id, done: true, cancelled }
+     * @param CallbackContext callback
+     * @throws RejectedExecutionException 线程池队列已满
+     */
+    public void start(CallbackContext callback) {
+        this.callback = callback;
+        synchronized (this) {
+            lastAck = System.currentTimeMillis();
+            running = true;
+        }
+        executor.execute(step);
+    }
+
+    /**
+     * JS 确认收到一块
+     */
+    public synchronized void ack() {
+        credits++;
+        lastAck = System.currentTimeMillis();
+        schedule();
+    }
+
+    /**
+     * 取消推送
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        schedule();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 有可推送的块（或需要结束）且没有进行中的步骤时提交下一步
+     */
+    private synchronized void schedule() {
+        if (running || closed || in == null) return;
+        if (credits == 0 && !cancelled && error == null) {
+            awaitAck();
+            return;
+        }
+        running = true;
+        try {
+            executor.execute(step);
+        } catch (RejectedExecutionException e) {
+            // 队列已满，稍后重试
+            running = false;
+            timer.schedule(retry, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 窗口已用完：超时仍未收到确认时结束推送
+     */
+    private void awaitAck() {
+        final long since = lastAck;
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChunkStream.this) {
+                    if (closed || lastAck != since) return;
+                    if (credits == 0 && error == null) error = "Stream acknowledgement timed out";
+                    schedule();
+                }
+            }
+        }, ACK_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ChunkStream.this) {
+                schedule();
+            }
+        }
+    };
+
+    // 读取并推送一块，或打开文件推送头部，或结束推送
+    private final Runnable step = new Runnable() {
+        @Override
+        public void run() {
+            boolean finished = false;
+            try {
+                finished = in == null ? open() : next();
+            } catch (IOException | JSONException e) {
+                synchronized (ChunkStream.this) {
+                    if (error == null) error = String.valueOf(e.getMessage());
+                }
+                finished = true;
+            }
+            if (finished) {
+                close();
+                return;
+            }
+            synchronized (ChunkStream.this) {
+                running = false;
+                schedule();
+            }
+        }
+    };
+
+    private boolean open() throws IOException, JSONException {
+        long size = file.length();
+        JSONObject header = new JSONObject();
+        header.put("id", id);
+        header.put("size", size);
+        chunk = new byte[(int) Math.min(chunkSize, Math.max(size, 1))];
+        InputStream stream = file.getInputStream();
+        synchronized (this) {
+            in = stream;
+        }
+        send(new PluginResult(PluginResult.Status.OK, header), true);
+        return false;
+    }
+
+    /**
+     * @return boolean 已读完、已取消或已失败
+     */
+    private boolean next() throws IOException {
+        synchronized (this) {
+            if (cancelled || error != null) return true;
+            credits--;
+        }
+        int len = 0;
+        int n;
+        SessionPool.Lease lease = sessionPool.acquire(file.getPath());
+        try {
+            while (len < chunk.length && (n = in.read(chunk, len, chunk.length - len)) > 0) {
+                len += n;
+            }
+        } finally {
+            lease.release();
+        }
+        if (len == 0) return true;
+
+        byte[] bytes = len == chunk.length ? chunk.clone() : Arrays.copyOf(chunk, len);
+        send(new PluginResult(PluginResult.Status.OK, bytes), true);
+        return false;
+    }
+
+    /**
+     * 关闭文件并推送结束或错误
+     */
+    private void close() {
+        String message;
+        boolean wasCancelled;
+        synchronized (this) {
+            closed = true;
+            running = false;
+            message = error;
+            wasCancelled = cancelled;
+        }
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // 忽略关闭异常
+            }
+        }
+        onClose.run();
+
+        if (message != null) {
+            callback.error(message);
+            return;
+        }
+        try {
+            JSONObject footer = new JSONObject();
+            footer.put("id", id);
+            footer.put("done", true);
+            footer.put("cancelled", wasCancelled);
+            send(new PluginResult(PluginResult.Status.OK, footer), false);
+        } catch (JSONException e) {
+            // 键值均非空，不会发生
+        }
+    }
+
+    private void send(PluginResult result, boolean keepCallback) {
+        result.setKeepCallback(keepCallback);
+        callback.sendPluginResult(result);
+    }
+
+}
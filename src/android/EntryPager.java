@@ -0,0 +1,214 @@
+/**
+ * Entry Pager
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 目录条目分页器
+ * 接收目录枚举得到的条目，按页推送给监听器，整个列表无需同时驻留内存
+ * 需要排序时，每 runSize 个条目排序后写入临时文件，枚举结束后多路归并输出
+ */
+class EntryPager {
+
+    private int pageSize;
+    private boolean sorted;
+    private int runSize;
+    private File tempDir;
+    private Set<String> fields;
+    private SambaFile.OnPageListener listener;
+
+    private Comparator<JSONObject> comparator = new SambaFile.SambaComparator();
+    private List<JSONObject> buffer = new ArrayList<JSONObject>();
+    private List<File> runs = new ArrayList<File>();
+
+    /**
+     * @param int pageSize 每页条目数
+     * @param boolean sorted 是否按文件夹优先、名称排序输出
+     * @param int runSize 排序时每个临时文件的条目数
+     * @param File tempDir 临时文件目录
+     * @param Set<String> fields 需要返回的字段，为 null 时返回全部字段
+     * @param OnPageListener listener
+     */
+    public EntryPager(int pageSize, boolean sorted, int runSize, File tempDir,
+        Set<String> fields, SambaFile.OnPageListener listener) {
+        this.pageSize = Math.max(pageSize, 1);
+        this.sorted = sorted;
+        this.runSize = Math.max(runSize, this.pageSize);
+        this.tempDir = tempDir;
+        this.fields = fields;
+        this.listener = listener;
+    }
+
+    /**
+     * 加入一个条目，缓冲区满时推送一页或写出一个排序段
+     * @param JSONObject entry
+     */
+    public void add(JSONObject entry) throws IOException, JSONException {
+        buffer.add(entry);
+        if (!sorted && buffer.size() >= pageSize) {
+            listener.onPage(project(buffer), false);
+            buffer.clear();
+        } else
+        if (sorted && buffer.size() >= runSize) {
+            runs.add(writeRun(buffer));
+            buffer.clear();
+        }
+    }
+
+    /**
+     * 枚举结束，推送剩余条目（排序时执行归并）
+     */
+    public void finish() throws IOException, JSONException {
+        if (!sorted || runs.isEmpty()) {
+            if (sorted) Collections.sort(buffer, comparator);
+            for (int i = 0; i < buffer.size(); i += pageSize) {
+                int end = Math.min(i + pageSize, buffer.size());
+                listener.onPage(project(buffer.subList(i, end)), end == buffer.size());
+            }
+            if (buffer.isEmpty()) {
+                listener.onPage(new JSONArray(), true);
+            }
+            buffer.clear();
+            return;
+        }
+
+        if (!buffer.isEmpty()) {
+            runs.add(writeRun(buffer));
+            buffer.clear();
+        }
+        try {
+            merge();
+        } finally {
+            cleanup();
+        }
+    }
+
+    /**
+     * 枚举出错时删除临时文件
+     */
+    public void cleanup() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 排序后按行写入临时文件
+     */
+    private File writeRun(List<JSONObject> entries) throws IOException {
+        Collections.sort(entries, comparator);
+        File file = File.createTempFile("entries", ".run", tempDir);
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            for (JSONObject entry : entries) {
+                writer.write(entry.toString());
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * 多路归并所有排序段，每个段同时只读取一个条目
+     */
+    private void merge() throws IOException, JSONException {
+        List<BufferedReader> readers = new ArrayList<BufferedReader>();
+        PriorityQueue<Head> heads = new PriorityQueue<Head>(runs.size(), new Comparator<Head>() {
+            @Override
+            public int compare(Head h1, Head h2) {
+                return comparator.compare(h1.entry, h2.entry);
+            }
+        });
+
+        try {
+            for (File run : runs) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(run), "UTF-8"));
+                readers.add(reader);
+                String line = reader.readLine();
+                if (line != null) heads.add(new Head(new JSONObject(line), reader));
+            }
+
+            List<JSONObject> page = new ArrayList<JSONObject>(pageSize);
+            while (!heads.isEmpty()) {
+                Head head = heads.poll();
+                page.add(head.entry);
+                String line = head.reader.readLine();
+                if (line != null) heads.add(new Head(new JSONObject(line), head.reader));
+
+                if (page.size() >= pageSize || heads.isEmpty()) {
+                    listener.onPage(project(page), heads.isEmpty());
+                    page.clear();
+                }
+            }
+        } finally {
+            for (BufferedReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private JSONArray project(List<JSONObject> entries) throws JSONException {
+        return SambaFile.project(entries, fields);
+    }
+
+    /**
+     * 归并时各排序段的当前条目
+     */
+    private static class Head {
+        final JSONObject entry;
+        final BufferedReader reader;
+
+        Head(JSONObject entry, BufferedReader reader) {
+            this.entry = entry;
+            this.reader = reader;
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+/**
+ * Listing Cache
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.json.JSONObject;
+
+/**
+ * 目录列表内存缓存
+ * 以规范化的 SMB 路径为键缓存 listEntries 结果，超过有效期后失效
+ * 创建、删除、上传操作会同步更新或清除所在目录的缓存
+ */
+class ListingCache {
+
+    public static final int DEFAULT_MAX_SIZE = 64;
+    public static final long DEFAULT_TTL = 30 * 1000;
+
+    private static LruCache<String, Listing> cache = new LruCache<String, Listing>(DEFAULT_MAX_SIZE);
+    private static long ttl = DEFAULT_TTL;
+
+    /**
+     * 设置缓存目录数上限和有效期，已缓存的内容会被清空
+     * @param int maxSize 缓存目录数，为 0 时禁用缓存
+     * @param long ttl 有效期（毫秒）
+     */
+    public static synchronized void configure(int maxSize, long ttl) {
+        cache = new LruCache<String, Listing>(Math.max(maxSize, 1));
+        ListingCache.ttl = maxSize > 0 ? ttl : 0;
+    }
+
+    /**
+     * 获取目录缓存
+     * @param String path
+     * @return List<JSONObject> 未缓存或已过期时返回 null
+     */
+    public static synchronized List<JSONObject> get(String path) {
+        String key = normalize(path);
+        Listing listing = cache.get(key);
+        if (listing == null) return null;
+        if (listing.expiresAt < System.currentTimeMillis()) {
+            cache.remove(key);
+            return null;
+        }
+        return listing.entries;
+    }
+
+    /**
+     * 缓存目录列表
+     * @param String path
+     * @param List<JSONObject> entries 已排序的列表
+     */
+    public static synchronized void put(String path, List<JSONObject> entries) {
+        if (ttl <= 0) return;
+        cache.put(normalize(path), new Listing(entries, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * 新建或覆盖文件后，更新所在目录缓存中的对应条目
+     * @param JSONObject entry
+     */
+    public static synchronized void update(JSONObject entry) {
+        String path = entry.optString("path");
+        String parentKey = normalize(parentOf(path));
+        Listing listing = cache.get(parentKey);
+        if (listing == null) return;
+
+        // 复制后修改，避免影响正在使用旧列表的调用方
+        List<JSONObject> entries = new ArrayList<JSONObject>(listing.entries.size() + 1);
+        String key = normalize(path);
+        for (JSONObject item : listing.entries) {
+            if (!normalize(item.optString("path")).equals(key)) {
+                entries.add(item);
+            }
+        }
+        entries.add(entry);
+        Collections.sort(entries, new SambaFile.SambaComparator());
+        cache.put(parentKey, new Listing(entries, listing.expiresAt));
+    }
+
+    /**
+     * 删除文件或目录后，移除所在目录缓存中的对应条目及其子目录缓存
+     * @param String path
+     */
+    public static synchronized void remove(String path) {
+        String key = normalize(path);
+        String parentKey = normalize(parentOf(path));
+        Listing listing = cache.get(parentKey);
+        if (listing != null) {
+            List<JSONObject> entries = new ArrayList<JSONObject>(listing.entries.size());
+            for (JSONObject item : listing.entries) {
+                if (!normalize(item.optString("path")).equals(key)) {
+                    entries.add(item);
+                }
+            }
+            cache.put(parentKey, new Listing(entries, listing.expiresAt));
+        }
+        for (String cached : cache.snapshot().keySet()) {
+            if (cached.startsWith(key)) {
+                cache.remove(cached);
+            }
+        }
+    }
+
+    /**
+     * 目录内容被外部改变后，清除该目录自身及其子目录的缓存，上级目录的缓存不受影响
+     * @param String path 目录路径
+     */
+    public static synchronized void invalidate(String path) {
+        String key = normalize(path);
+        for (String cached : cache.snapshot().keySet()) {
+            if (cached.startsWith(key)) {
+                cache.remove(cached);
+            }
+        }
+    }
+
+    /**
+     * 清空全部缓存（切换用户后之前的列表不再可见）
+     */
+    public static synchronized void clear() {
+        cache.evictAll();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * SMB 路径不区分大小写，统一为小写并以 '/' 结尾
+     */
+    private static String normalize(String path) {
+        String key = path.toLowerCase(Locale.ROOT);
+        return key.endsWith("/") ? key : key + "/";
+    }
+
+    /**
+     * 获取上级目录路径（以 '/' 结尾）
+     */
+    private static String parentOf(String path) {
+        String trimmed = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        return trimmed.substring(0, trimmed.lastIndexOf("/") + 1);
+    }
+
+    /**
+     * 缓存条目
+     */
+    private static class Listing {
+        final List<JSONObject> entries;
+        final long expiresAt;
+
+        Listing(List<JSONObject> entries, long expiresAt) {
+            this.entries = Collections.unmodifiableList(entries);
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Progress Channel
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 传输进度事件通道
+ * 所有传输的进度通过同一个保持的回调推送给 JS，每个传输按设定频率合并推送，
+ * 事件带有传输编号、已传输字节数、瞬时与平均速度以及预计剩余时间
+ */
+class ProgressChannel {
+
+    public static final int DEFAULT_RATE = 10;
+
+    private CallbackContext callback;
+    private long interval = 1000 / DEFAULT_RATE;
+
+    /**
+     * 设置接收事件的回调，旧回调不再接收事件
+     * @param CallbackContext callback
+     */
+    public synchronized void setCallback(CallbackContext callback) {
+        this.callback = callback;
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callback.sendPluginResult(result);
+    }
+
+    /**
+     * 设置每个传输每秒最多推送的事件数
+     * @param int rate
+     */
+    public synchronized void setRate(int rate) {
+        interval = rate > 0 ? 1000 / rate : 0;
+    }
+
+    /**
+     * 推送一个事件
+     * @param JSONObject event
+     */
+    public synchronized void send(JSONObject event) {
+        if (callback == null) return;
+        PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+        result.setKeepCallback(true);
+        callback.sendPluginResult(result);
+    }
+
+    /**
+     * 创建一个传输的进度监听器
+     * @param String id 传输编号
+     * @param String path 传输的源路径
+     * @return Tracker
+     */
+    public Tracker track(String id, String path) {
+        return new Tracker(id, path);
+    }
+
+    private synchronized long interval() {
+        return interval;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 单个传输的进度合并器
+     * 距上次推送不足一个周期的进度只记录不推送，传输完成时总会推送
+     */
+    class Tracker implements SambaFile.OnProgressListener {
+
+        private String id;
+        private String path;
+        private long startTime = -1;
+        private long startBytes;
+        private long lastTime;
+        private long lastBytes;
+
+        // 目录传输的文件计数，总量随遍历增长，只有调用 finish() 后才视为完成
+        private long files = -1;
+        private long totalFiles = -1;
+        private boolean finished;
+
+        public Tracker(String id, String path) {
+            this.id = id;
+            this.path = path;
+        }
+
+        /**
+         * 设置已完成和已发现的文件数，设置后事件带有 files 和 totalFiles
+         * @param long files
+         * @param long totalFiles
+         */
+        public void setFiles(long files, long totalFiles) {
+            this.files = files;
+            this.totalFiles = totalFiles;
+        }
+
+        /**
+         * 标记目录传输已结束，下一次进度总会推送
+         */
+        public void finish() {
+            finished = true;
+        }
+
+        @Override
+        public void onProgress(long transferred, long total) {
+            long now = SystemClock.elapsedRealtime();
+            // 续传时从断点开始计算速度
+            if (startTime < 0) {
+                startTime = lastTime = now;
+                startBytes = lastBytes = transferred;
+            }
+            boolean complete = totalFiles < 0 ? transferred >= total : finished;
+            if (now - lastTime < interval() && !complete) {
+                return;
+            }
+
+            long elapsed = now - lastTime;
+            long totalElapsed = now - startTime;
+            long speed = elapsed > 0 ? (transferred - lastBytes) * 1000 / elapsed : 0;
+            long averageSpeed = totalElapsed > 0 ? (transferred - startBytes) * 1000 / totalElapsed : 0;
+            long eta = averageSpeed > 0 ? (total - transferred) * 1000 / averageSpeed : -1;
+            lastTime = now;
+            lastBytes = transferred;
+
+            JSONObject event = new JSONObject();
+            try {
+                event.put("id", id);
+                event.put("path", path);
+                event.put("transferred", transferred);
+                event.put("total", total);
+                event.put("progress", total > 0 ? (double) transferred / total : 1);
+                event.put("speed", speed);
+                event.put("averageSpeed", averageSpeed);
+                event.put("eta", eta);
+                if (totalFiles >= 0) {
+                    event.put("files", files);
+                    event.put("totalFiles", totalFiles);
+                }
+            } catch (JSONException e) {
+                return;
+            }
+            send(event);
+        }
+    }
+
+}
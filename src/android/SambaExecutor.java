@@ -0,0 +1,246 @@
+/**
+ * Samba Executor
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 插件专用线程池
+ * 分为交互通道（列表、属性、小文件读取）、批量通道（上传下载等长任务）和目录通道
+ * （目录树任务的调度线程，只等待遍历和逐个文件的步骤结束），长时间的传输不会占用
+ * 交互操作的线程，等待中的目录任务也不会占用传输线程。每个通道有队列长度上限，队列中按优先级出队
+ */
+class SambaExecutor {
+
+    public static final int INTERACTIVE = 0;
+    public static final int BULK = 1;
+    public static final int TREE = 2;
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    private Lane[] lanes = new Lane[] {
+        new Lane("interactive", 4, 64),
+        new Lane("bulk", 2, 256),
+        new Lane("tree", 2, 64)
+    };
+
+    /**
+     * 在指定通道执行任务
+     * @param int lane INTERACTIVE、BULK 或 TREE
+     * @param int priority 优先级，数值越大越先执行
+     * @param Runnable task
+     * @throws RejectedExecutionException 队列已满
+     */
+    public void execute(int lane, int priority, Runnable task) {
+        lanes[lane].execute(priority, task);
+    }
+
+    /**
+     * 以固定优先级向指定通道提交任务的 Executor
+     * @param int lane
+     * @param int priority
+     * @return Executor 队列已满时 execute 抛出 RejectedExecutionException
+     */
+    public Executor lane(int lane, int priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                lanes[lane].execute(priority, task);
+            }
+        };
+    }
+
+    /**
+     * 设置通道线程数
+     * @param int lane
+     * @param int threads
+     */
+    public void setThreads(int lane, int threads) {
+        lanes[lane].setThreads(threads);
+    }
+
+    /**
+     * 设置通道队列长度上限
+     * @param int lane
+     * @param int maxQueue
+     */
+    public void setMaxQueue(int lane, int maxQueue) {
+        lanes[lane].maxQueue = Math.max(maxQueue, 1);
+    }
+
+    /**
+     * 解析 JS 传入的优先级提示
+     * @param String hint "high"、"normal" 或 "low"
+     * @return int
+     */
+    public static int parsePriority(String hint) {
+        if ("high".equals(hint)) return PRIORITY_HIGH;
+        if ("low".equals(hint)) return PRIORITY_LOW;
+        return PRIORITY_NORMAL;
+    }
+
+    /**
+     * 各通道统计
+     * @return JSONObject { interactive: {...}, bulk: {...}, tree: {...} }
+     */
+    public JSONObject stats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        for (Lane lane : lanes) {
+            stats.put(lane.name, lane.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * 停止所有通道
+     */
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.pool.shutdownNow();
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 单个通道
+     */
+    private static class Lane {
+
+        final String name;
+        final ThreadPoolExecutor pool;
+        volatile int maxQueue;
+
+        final AtomicLong sequence = new AtomicLong();
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong totalWait = new AtomicLong();
+        final AtomicInteger maxQueued = new AtomicInteger();
+
+        Lane(String name, int threads, int maxQueue) {
+            this.name = name;
+            this.maxQueue = maxQueue;
+            this.pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "samba-" + Lane.this.name + "-" + count.incrementAndGet());
+                    }
+                });
+            this.pool.allowCoreThreadTimeOut(true);
+        }
+
+        void execute(int priority, Runnable task) {
+            int queued = pool.getQueue().size();
+            if (queued >= maxQueue) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("Too many pending " + name + " tasks");
+            }
+            submitted.incrementAndGet();
+            pool.execute(new PrioritizedTask(priority, sequence.incrementAndGet(), task));
+
+            int depth = pool.getQueue().size();
+            int max;
+            while (depth > (max = maxQueued.get()) && !maxQueued.compareAndSet(max, depth));
+        }
+
+        synchronized void setThreads(int threads) {
+            threads = Math.max(threads, 1);
+            if (threads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(threads);
+                pool.setCorePoolSize(threads);
+            } else {
+                pool.setCorePoolSize(threads);
+                pool.setMaximumPoolSize(threads);
+            }
+        }
+
+        JSONObject stats() throws JSONException {
+            long done = completed.get();
+            JSONObject stats = new JSONObject();
+            stats.put("threads", pool.getMaximumPoolSize());
+            stats.put("active", pool.getActiveCount());
+            stats.put("queued", pool.getQueue().size());
+            stats.put("maxQueued", maxQueued.get());
+            stats.put("queueLimit", maxQueue);
+            stats.put("submitted", submitted.get());
+            stats.put("completed", done);
+            stats.put("rejected", rejected.get());
+            stats.put("averageWait", done > 0 ? totalWait.get() / done : 0);
+            return stats;
+        }
+
+        /**
+         * 带优先级的任务，同优先级按提交顺序执行
+         */
+        private class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+            final int priority;
+            final long sequence;
+            final long enqueueTime = SystemClock.elapsedRealtime();
+            final Runnable task;
+
+            PrioritizedTask(int priority, long sequence, Runnable task) {
+                this.priority = priority;
+                this.sequence = sequence;
+                this.task = task;
+            }
+
+            @Override
+            public void run() {
+                totalWait.addAndGet(SystemClock.elapsedRealtime() - enqueueTime);
+                try {
+                    task.run();
+                } finally {
+                    completed.incrementAndGet();
+                }
+            }
+
+            @Override
+            public int compareTo(PrioritizedTask other) {
+                if (priority != other.priority) return other.priority > priority ? 1 : -1;
+                return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+            }
+        }
+    }
+
+}
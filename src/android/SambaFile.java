@@ -27,12 +27,14 @@ import jcifs.smb.*;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.Collator;
 
 import java.util.ArrayList;
@@ -43,6 +45,13 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -61,7 +70,13 @@ class SambaFile extends SmbFile {
     }};
 
     private static final int BUFFER_SIZE = 8192;
+    // 分段下载时单次读取的最大字节数（接近 jcifs 单个 SMB_COM_READ_ANDX 响应上限）
+    private static final int RANGE_BUFFER_SIZE = 60 * 1024;
+    // 分段下载的最大并发数，每个线程各占一个文件句柄和一个会话请求
+    private static final int MAX_DOWNLOAD_THREADS = 8;
     private static NtlmPasswordAuthentication auth;
+    // 传输时每次读写前从中获取会话使用权，为 null 时不限制
+    private static volatile SessionPool sessionPool;
 
     // 中文排序
     private Collator collator = Collator.getInstance(Locale.CHINESE);
@@ -88,19 +103,92 @@ class SambaFile extends SmbFile {
         }
     }
 
+    /**
+     * 获取当前认证信息
+     * @return NtlmPasswordAuthentication 匿名访问时返回 null
+     */
+    static NtlmPasswordAuthentication getAuthentication() {
+        return auth;
+    }
+
+    /**
+     * 设置传输使用的会话池
+     * @param SessionPool pool
+     */
+    static void setSessionPool(SessionPool pool) {
+        sessionPool = pool;
+    }
+
     /**
      * 根据当前路径列出所有远程文件夹和文件
      * 由于返回值不同，不能与父类方法重名
      * @return JSONArray
      */
     public JSONArray listEntries() throws MalformedURLException, SmbException, JSONException {
-        if (this.exists() && this.isDirectory()) {
-            SmbFile[] files = this.listFiles();
-            List<JSONObject> list = parseToList(files);
+        return listEntries(false, null);
+    }
+
+    /**
+     * 根据当前路径列出所有远程文件夹和文件，优先使用目录缓存
+     * 所有属性均取自一次目录枚举响应，不再单独查询目录是否存在及各条目属性
+     * @param boolean forceRefresh 忽略缓存重新读取
+     * @param Set<String> fields 需要返回的字段，为 null 时返回全部字段
+     * @return JSONArray 当前路径不是目录时返回 null
+     */
+    public JSONArray listEntries(boolean forceRefresh, Set<String> fields)
+        throws MalformedURLException, SmbException, JSONException {
+
+        List<JSONObject> list = forceRefresh ? null : ListingCache.get(this.getPath());
+        if (list == null) {
+            list = new ArrayList<JSONObject>();
+            try {
+                this.listFiles(new EntryCollector(list));
+            } catch (SmbException e) {
+                int status = e.getNtStatus();
+                if (status == SmbException.NT_STATUS_NOT_A_DIRECTORY
+                    || status == SmbException.NT_STATUS_OBJECT_NAME_NOT_FOUND
+                    || status == SmbException.NT_STATUS_OBJECT_PATH_NOT_FOUND) {
+                    return null;
+                }
+                throw e;
+            }
             Collections.sort(list, new SambaComparator());
-            return new JSONArray(list);
+            ListingCache.put(this.getPath(), list);
+        }
+        return project(list, fields);
+    }
+
+    /**
+     * 根据当前路径列出所有远程文件夹和文件，边枚举边分页推送
+     * 适用于条目数很多的目录，不经过目录缓存
+     * @param EntryPager pager
+     */
+    public void listEntries(EntryPager pager) throws IOException, JSONException {
+        try {
+            this.listFiles(new SmbFileFilter() {
+                @Override
+                public boolean accept(SmbFile file) throws SmbException {
+                    JSONObject entry = parseEntry(file);
+                    if (entry == null) return false;
+                    try {
+                        pager.add(entry);
+                    } catch (IOException | JSONException e) {
+                        // 过滤器只能抛出 SmbException，包装后中止枚举
+                        throw new PagingException(e);
+                    }
+                    return false;
+                }
+            });
+            pager.finish();
+        } catch (PagingException e) {
+            pager.cleanup();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw (JSONException) cause;
+        } catch (IOException | JSONException e) {
+            pager.cleanup();
+            throw e;
         }
-        return null;
     }
 
     /**
@@ -142,6 +230,7 @@ class SambaFile extends SmbFile {
         entry.put("path", this.getPath());
         entry.put("size", 0);
         entry.put("lastModified", System.currentTimeMillis());
+        ListingCache.update(entry);
         return entry;
     }
 
@@ -159,18 +248,40 @@ class SambaFile extends SmbFile {
         entry.put("path", this.getPath());
         entry.put("size", 0);
         entry.put("lastModified", System.currentTimeMillis());
+        ListingCache.update(entry);
         return entry;
     }
 
+    /**
+     * 删除文件或文件夹（文件夹递归删除），并清除对应的目录缓存
+     */
+    @Override
+    public void delete() throws SmbException {
+        super.delete();
+        ListingCache.remove(this.getPath());
+    }
+
     /**
      * 读取文件内容为字节数组
      * @return byte[]
      */
     public byte[] readAsByteArray() throws IOException {
+        long length = this.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("File is too large to read at once: " + length);
+        }
         InputStream in = this.getInputStream();
-        byte[] bytes = new byte[(int) this.length()];
-        in.read(bytes);
-        in.close();
+        byte[] bytes = new byte[(int) length];
+        try {
+            // 单次 read 可能只返回部分数据
+            int len = 0;
+            int n;
+            while (len < bytes.length && (n = in.read(bytes, len, bytes.length - len)) > 0) {
+                len += n;
+            }
+        } finally {
+            in.close();
+        }
         return bytes;
     }
 
@@ -191,22 +302,53 @@ class SambaFile extends SmbFile {
      */
     public JSONObject upload(String localPath, OnProgressListener listener)
         throws IOException, JSONException {
+        return upload(localPath, null, listener);
+    }
 
-        File file = new File(localPath);
-        FileInputStream in = new FileInputStream(file);
-        OutputStream out = this.getOutputStream();
+    /**
+     * 上传本地文件到远程路径，从日志记录的偏移处继续
+     * @param String localPath
+     * @param TransferJournal journal 为 null 时从头上传且不记录断点
+     * @param OnProgressListener listener
+     * @return JSONObject
+     */
+    public JSONObject upload(String localPath, TransferJournal journal, OnProgressListener listener)
+        throws IOException, JSONException {
 
+        File file = new File(localPath);
         long totalSize = file.length();
-        long size = 0;
-        byte[] b = new byte[BUFFER_SIZE];
-        int len = 0;
-        while((len = in.read(b)) > 0) {
-            out.write(b, 0, len);
-            size += len;
-            listener.onProgress((float) size / totalSize);
+        long size = journal == null ? 0 : journal.getOffset();
+        long committed = size;
+
+        FileInputStream in = new FileInputStream(file);
+        SmbRandomAccessFile out = new SmbRandomAccessFile(this, "rw");
+        try {
+            // 丢弃远程文件断点之后的内容（从头上传时即清空）
+            in.getChannel().position(size);
+            out.setLength(size);
+            out.seek(size);
+
+            byte[] b = new byte[RANGE_BUFFER_SIZE];
+            int len = 0;
+            while((len = in.read(b)) > 0) {
+                SessionPool.Lease lease = lease();
+                try {
+                    out.write(b, 0, len);
+                } finally {
+                    release(lease);
+                }
+                size += len;
+                // SMB 写请求返回即已写入服务端，可直接确认偏移
+                if (journal != null && size - committed >= TransferJournal.COMMIT_INTERVAL) {
+                    journal.commit(size);
+                    committed = size;
+                }
+                listener.onProgress(size, totalSize);
+            }
+        } finally {
+            in.close();
+            out.close();
         }
-        in.close();
-        out.close();
 
         JSONObject entry = new JSONObject();
         entry.put("name", parseName(this.getName()));
@@ -215,6 +357,7 @@ class SambaFile extends SmbFile {
         entry.put("path", this.getPath());
         entry.put("size", this.length());
         entry.put("lastModified", System.currentTimeMillis());
+        ListingCache.update(entry);
         return entry;
     }
 
@@ -226,20 +369,147 @@ class SambaFile extends SmbFile {
      */
     public void download(String localPath, OnProgressListener listener)
         throws IOException, JSONException {
-        InputStream in = this.getInputStream();
-        FileOutputStream out = new FileOutputStream(localPath);
+        download(localPath, null, listener);
+    }
+
+    /**
+     * 将远程文件下载到本地，从日志记录的偏移处继续
+     * @param String localPath
+     * @param TransferJournal journal 为 null 时从头下载且不记录断点
+     * @param OnProgressListener listener
+     */
+    public void download(String localPath, TransferJournal journal, OnProgressListener listener)
+        throws IOException, JSONException {
+
+        long totalSize = this.length();
+        long size = journal == null ? 0 : journal.getOffset();
+        long committed = size;
+
+        SmbRandomAccessFile in = new SmbRandomAccessFile(this, "r");
+        RandomAccessFile out = new RandomAccessFile(localPath, "rw");
+        FileChannel channel = out.getChannel();
+        try {
+            // 丢弃本地文件断点之后的内容（从头下载时即清空）
+            in.seek(size);
+            channel.truncate(size);
+            channel.position(size);
+
+            byte[] b = new byte[RANGE_BUFFER_SIZE];
+            int len = 0;
+            while(size < totalSize && (len = read(in, b, 0, b.length)) > 0) {
+                out.write(b, 0, len);
+                size += len;
+                // 确认偏移前先将本地数据落盘
+                if (journal != null && size - committed >= TransferJournal.COMMIT_INTERVAL) {
+                    channel.force(false);
+                    journal.commit(size);
+                    committed = size;
+                }
+                listener.onProgress(size, totalSize);
+            }
+        } finally {
+            in.close();
+            channel.close();
+            out.close();
+        }
+    }
+
+    /**
+     * 将远程文件分段并行下载到本地
+     * 文件按 chunkSize 切分为若干区段，由 threads 个线程各自打开 SmbRandomAccessFile
+     * 并发读取，并写入本地文件的对应偏移位置
+     * @param String localPath
+     * @param int threads 并发数，最多 MAX_DOWNLOAD_THREADS，小于 2 时退化为单流下载
+     * @param int chunkSize 区段大小（字节）
+     * @param TransferJournal journal 为 null 时从头下载且不记录断点
+     * @param OnProgressListener listener
+     */
+    public void download(String localPath, int threads, int chunkSize,
+        TransferJournal journal, OnProgressListener listener) throws IOException, JSONException {
 
         long totalSize = this.length();
-        long size = 0;
-        byte[] b = new byte[BUFFER_SIZE];
-        int len = 0;
-        while((len = in.read(b)) > 0) {
-            out.write(b, 0, len);
-            size += len;
-            listener.onProgress((float) size / totalSize);
+        threads = Math.min(threads, MAX_DOWNLOAD_THREADS);
+        if (threads < 2 || chunkSize <= 0 || totalSize <= chunkSize) {
+            download(localPath, journal, listener);
+            return;
+        }
+
+        // 断点之前的数据已确认落盘，从断点继续领取区段
+        long offset = journal == null ? 0 : journal.getOffset();
+        RandomAccessFile local = new RandomAccessFile(localPath, "rw");
+        local.setLength(totalSize);
+        FileChannel channel = local.getChannel();
+
+        AtomicLong nextOffset = new AtomicLong(offset);
+        AtomicLong transferred = new AtomicLong(offset);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new RangeReader(
+                channel, totalSize, chunkSize, nextOffset, transferred, journal, listener)));
+        }
+
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download interrupted");
+        } finally {
+            executor.shutdownNow();
+            channel.close();
+            local.close();
+        }
+    }
+
+    /**
+     * 打开文件输入流，打开和每次读取期间持有会话使用权，两次读取之间不占用
+     * @return InputStream
+     */
+    public InputStream getLeasedInputStream() throws IOException {
+        SessionPool pool = sessionPool;
+        if (pool == null) return this.getInputStream();
+        SessionPool.Lease lease = pool.acquire(getPath());
+        try {
+            return pool.leased(getPath(), this.getInputStream());
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * 持有会话使用权读取一次
+     * @param SmbRandomAccessFile in 本文件的随机读取句柄
+     * @return int 读取的字节数
+     */
+    public int read(SmbRandomAccessFile in, byte[] b, int off, int len) throws IOException {
+        SessionPool.Lease lease = lease();
+        try {
+            return in.read(b, off, len);
+        } finally {
+            release(lease);
+        }
+    }
+
+    /**
+     * 持有会话使用权从指定位置读满 b
+     * @param SmbRandomAccessFile in 本文件的随机读取句柄
+     * @param long position
+     * @param byte[] b
+     */
+    public void readFully(SmbRandomAccessFile in, long position, byte[] b) throws IOException {
+        SessionPool.Lease lease = lease();
+        try {
+            in.seek(position);
+            in.readFully(b);
+        } finally {
+            release(lease);
         }
-        in.close();
-        out.close();
     }
 
     /**
@@ -262,32 +532,64 @@ class SambaFile extends SmbFile {
     // 私有方法
     ///////////////////////////////////////////////////////
 
+    private SessionPool.Lease lease() throws IOException {
+        SessionPool pool = sessionPool;
+        return pool == null ? null : pool.acquire(getPath());
+    }
+
+    private static void release(SessionPool.Lease lease) {
+        if (lease != null) lease.release();
+    }
+
     /**
-     * Parses smbfiles to arraylist
-     * @param SmbFile[] files
-     * @return List<JSONObject>
+     * Parses smbfile enumerated from directory listing to entry.
+     * Attributes of enumerated files are cached by jcifs for a short period,
+     * so they must be read right away to avoid extra queries.
+     * @param SmbFile file
+     * @return JSONObject null if the file should be hidden
      */
-    private List<JSONObject> parseToList(SmbFile[] files) throws SmbException, JSONException {
-        List<JSONObject> list = new ArrayList<JSONObject>();
-        for (SmbFile file : files) {
-            int type = file.getType();
-            if (type != SmbFile.TYPE_FILESYSTEM && type != SmbFile.TYPE_SHARE) {
-                continue;
-            }
-            String name = file.getName();
-            if (name.endsWith("$/")) {
-                continue;
+    private JSONObject parseEntry(SmbFile file) throws SmbException {
+        int type = file.getType();
+        if (type != SmbFile.TYPE_FILESYSTEM && type != SmbFile.TYPE_SHARE) {
+            return null;
+        }
+        String name = file.getName();
+        if (name.endsWith("$/")) {
+            return null;
+        }
+        // 共享的大小需要额外查询磁盘信息，枚举响应中没有
+        boolean isShare = type == SmbFile.TYPE_SHARE;
+        boolean isFile = !isShare && (file.getAttributes() & SmbFile.ATTR_DIRECTORY) == 0;
+
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put("name", parseName(name));
+        entry.put("ext", parseExtName(name));
+        entry.put("type", isFile ? 0 : type);
+        entry.put("path", file.getPath());
+        entry.put("size", isShare ? 0 : file.length());
+        entry.put("lastModified", isShare ? 0 : file.lastModified());
+        return new JSONObject(entry);
+    }
+
+    /**
+     * Keeps only the requested fields of each entry.
+     * @param List<JSONObject> list
+     * @param Set<String> fields null for all fields
+     * @return JSONArray
+     */
+    static JSONArray project(List<JSONObject> list, Set<String> fields) throws JSONException {
+        if (fields == null) {
+            return new JSONArray(list);
+        }
+        JSONArray array = new JSONArray();
+        for (JSONObject entry : list) {
+            JSONObject projected = new JSONObject();
+            for (String field : fields) {
+                if (entry.has(field)) projected.put(field, entry.get(field));
             }
-            JSONObject entry = new JSONObject();
-            entry.put("name", parseName(name));
-            entry.put("ext", parseExtName(name));
-            entry.put("type", parseType(file));
-            entry.put("path", file.getPath());
-            entry.put("size", file.length());
-            entry.put("lastModified", file.getLastModified());
-            list.add(entry);
+            array.put(projected);
         }
-        return list;
+        return array;
     }
 
     /**
@@ -338,9 +640,41 @@ class SambaFile extends SmbFile {
     ///////////////////////////////////////////////////////
 
     /**
-     * 列表排序类
+     * 目录枚举过滤器
+     * 在 jcifs 枚举每个条目时直接解析为 JSON 并收集，返回 false 使 jcifs 不再保留 SmbFile 对象
      */
-    private class SambaComparator implements Comparator<JSONObject> {
+    private class EntryCollector implements SmbFileFilter {
+
+        private List<JSONObject> list;
+        public EntryCollector(List<JSONObject> list) {
+            this.list = list;
+        }
+
+        @Override
+        public boolean accept(SmbFile file) throws SmbException {
+            JSONObject entry = parseEntry(file);
+            if (entry != null) list.add(entry);
+            return false;
+        }
+    }
+
+    /**
+     * 分页推送出错时用于中止目录枚举
+     */
+    private static class PagingException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public PagingException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * 列表排序类：文件夹在前，同类型按名称中文排序
+     */
+    static class SambaComparator implements Comparator<JSONObject> {
+        private Collator collator = Collator.getInstance(Locale.CHINESE);
+
         @Override
         public int compare(JSONObject o1, JSONObject o2) {
             try {
@@ -354,16 +688,93 @@ class SambaFile extends SmbFile {
         }
     }
 
+    /**
+     * 分段下载任务
+     * 每个线程独占一个 SmbRandomAccessFile，循环领取下一个未下载的区段，
+     * 读取后按偏移写入本地文件（FileChannel 的定位写入是线程安全的）
+     */
+    private class RangeReader implements Callable<Void> {
+
+        private FileChannel channel;
+        private long totalSize;
+        private int chunkSize;
+        private AtomicLong nextOffset;
+        private AtomicLong transferred;
+        private TransferJournal journal;
+        private OnProgressListener listener;
+
+        public RangeReader(FileChannel channel, long totalSize, int chunkSize, AtomicLong nextOffset,
+            AtomicLong transferred, TransferJournal journal, OnProgressListener listener) {
+            this.channel = channel;
+            this.totalSize = totalSize;
+            this.chunkSize = chunkSize;
+            this.nextOffset = nextOffset;
+            this.transferred = transferred;
+            this.journal = journal;
+            this.listener = listener;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            SmbRandomAccessFile in = new SmbRandomAccessFile(SambaFile.this, "r");
+            byte[] b = new byte[Math.min(chunkSize, RANGE_BUFFER_SIZE)];
+            try {
+                long start;
+                while ((start = nextOffset.getAndAdd(chunkSize)) < totalSize) {
+                    long end = Math.min(start + chunkSize, totalSize);
+                    long offset = start;
+                    in.seek(offset);
+                    while (offset < end) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedIOException("Download interrupted");
+                        }
+                        int len = read(in, b, 0, (int) Math.min(b.length, end - offset));
+                        if (len <= 0) {
+                            throw new IOException("Unexpected end of file at " + offset);
+                        }
+                        ByteBuffer buffer = ByteBuffer.wrap(b, 0, len);
+                        long position = offset;
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                        offset += len;
+
+                        long size = transferred.addAndGet(len);
+                        synchronized (listener) {
+                            listener.onProgress(size, totalSize);
+                        }
+                    }
+                    // 区段落盘后记入日志
+                    if (journal != null) {
+                        channel.force(false);
+                        journal.commitRange(start, end);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return null;
+        }
+    }
+
     ///////////////////////////////////////////////////////
     // 公共接口
     ///////////////////////////////////////////////////////
 
+    /**
+     * 分页列表回调接口
+     * 需实现 onPage 方法，done 为 true 表示最后一页
+     */
+    public interface OnPageListener {
+        public void onPage(JSONArray entries, boolean done);
+    }
+
     /**
      * 文件传输（上传下载）进度回调接口
-     * 需实现 onProgress 方法
+     * 需实现 onProgress 方法，参数为已传输字节数和总字节数，抛出异常时传输中止
      */
     public interface OnProgressListener {
-        public void onProgress(float progress);
+        public void onProgress(long transferred, long total) throws IOException;
     }
 
 }
@@ -0,0 +1,385 @@
+/**
+ * Samba Http Server
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import android.webkit.MimeTypeMap;
+
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbRandomAccessFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 本地回环 HTTP 服务
+ * 仅监听 127.0.0.1，将 http://127.0.0.1:port/token/host/share/path 映射为 smb://host/share/path，
+ * 支持 Range 请求，使 WebView 中的 img、video 和 fetch() 可直接流式读取 SMB 文件
+ */
+class SambaHttpServer {
+
+    private static final int MAX_CONNECTIONS = 8;
+    private static final int SOCKET_TIMEOUT = 30 * 1000;
+    private static final int BUFFER_SIZE = 60 * 1024;
+    // 允许跨域读取的 WebView 页面来源（file: 页面的来源为 null），其他来源的页面不能读取响应
+    private static final List<String> ALLOWED_ORIGINS = Arrays.asList(
+        "https://localhost", "http://localhost", "null");
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private volatile String token;
+
+    /**
+     * 启动服务，监听随机端口
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) return;
+
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : random) {
+            sb.append(String.format("%02x", b));
+        }
+        token = sb.toString();
+
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        executor = Executors.newFixedThreadPool(MAX_CONNECTIONS + 1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(serverSocket);
+            }
+        });
+    }
+
+    /**
+     * 停止服务，令牌随之失效
+     */
+    public synchronized void stop() {
+        if (serverSocket == null) return;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // 忽略关闭异常
+        }
+        executor.shutdownNow();
+        serverSocket = null;
+        executor = null;
+        token = null;
+    }
+
+    /**
+     * 服务根地址（含令牌），未启动时返回 null
+     * @return String
+     */
+    public synchronized String getBaseUrl() {
+        if (serverSocket == null) return null;
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + token + "/";
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private void acceptLoop(ServerSocket server) {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setSoTimeout(SOCKET_TIMEOUT);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // 服务已关闭
+                return;
+            } catch (RuntimeException e) {
+                // 线程池已关闭
+                return;
+            }
+        }
+    }
+
+    /**
+     * 处理一个连接上的请求（支持 keep-alive）
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            boolean keepAlive = true;
+            while (keepAlive) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) break;
+
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                            line.substring(colon + 1).trim());
+                    }
+                }
+                keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+                handle(requestLine, headers, out, keepAlive);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // 客户端断开或超时
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 忽略关闭异常
+            }
+        }
+    }
+
+    private void handle(String requestLine, Map<String, String> headers, OutputStream out, boolean keepAlive)
+        throws IOException {
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            sendStatus(out, 400, "Bad Request", keepAlive);
+            return;
+        }
+        String method = parts[0];
+        boolean head = "HEAD".equals(method);
+        boolean preflight = "OPTIONS".equals(method);
+        if (!head && !preflight && !"GET".equals(method)) {
+            sendStatus(out, 405, "Method Not Allowed", keepAlive);
+            return;
+        }
+
+        String smbPath;
+        try {
+            smbPath = parsePath(parts[1]);
+        } catch (IllegalArgumentException e) {
+            // 非法的 % 转义
+            sendStatus(out, 400, "Bad Request", keepAlive);
+            return;
+        }
+        if (smbPath == null) {
+            sendStatus(out, 403, "Forbidden", keepAlive);
+            return;
+        }
+        String origin = allowedOrigin(headers.get("origin"));
+        if (preflight) {
+            sendPreflight(out, origin, keepAlive);
+            return;
+        }
+
+        SambaFile file = new SambaFile(smbPath);
+        long size;
+        long lastModified;
+        try {
+            if (!file.isFile()) {
+                sendStatus(out, 404, "Not Found", keepAlive);
+                return;
+            }
+            size = file.length();
+            lastModified = file.lastModified();
+        } catch (SmbException e) {
+            sendStatus(out, 404, "Not Found", keepAlive);
+            return;
+        }
+
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        if (etag.equals(headers.get("if-none-match"))) {
+            writeHeaders(out, 304, "Not Modified", etag, null, -1, null, origin, keepAlive);
+            return;
+        }
+
+        long start = 0;
+        long end = size - 1;
+        String range = headers.get("range");
+        boolean partial = range != null && range.startsWith("bytes=") && !range.contains(",");
+        if (partial) {
+            String spec = range.substring(6).trim();
+            int dash = spec.indexOf('-');
+            try {
+                if (dash == 0) {
+                    // bytes=-N 表示最后 N 个字节
+                    start = Math.max(size - Long.parseLong(spec.substring(1)), 0);
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash < spec.length() - 1) {
+                        end = Math.min(Long.parseLong(spec.substring(dash + 1)), size - 1);
+                    }
+                }
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                partial = false;
+                start = 0;
+                end = size - 1;
+            }
+            if (partial && (start > end || start >= size)) {
+                out.write(("HTTP/1.1 416 Range Not Satisfiable\r\n"
+                    + "Content-Range: bytes */" + size + "\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes("UTF-8"));
+                return;
+            }
+        }
+
+        long length = end - start + 1;
+        String contentRange = partial ? "bytes " + start + "-" + end + "/" + size : null;
+        writeHeaders(out, partial ? 206 : 200, partial ? "Partial Content" : "OK",
+            etag, contentType(file), length, contentRange, origin, keepAlive);
+        if (head || length <= 0) return;
+
+        SmbRandomAccessFile raf = new SmbRandomAccessFile(file, "r");
+        try {
+            raf.seek(start);
+            byte[] b = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int len = file.read(raf, b, 0, (int) Math.min(b.length, remaining));
+                if (len <= 0) throw new IOException("Unexpected end of file");
+                out.write(b, 0, len);
+                remaining -= len;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 校验令牌并将请求路径转换为 SMB 路径
+     * @return String 令牌错误时返回 null
+     */
+    private String parsePath(String target) throws IOException {
+        int query = target.indexOf('?');
+        if (query >= 0) target = target.substring(0, query);
+
+        // 令牌按固定时间比较，避免通过响应时间逐字节猜测
+        String expected = token;
+        int end = target.indexOf('/', 1);
+        if (expected == null || !target.startsWith("/") || end < 0) return null;
+        byte[] actual = target.substring(1, end).getBytes("UTF-8");
+        if (!MessageDigest.isEqual(actual, expected.getBytes("UTF-8"))) return null;
+
+        StringBuilder sb = new StringBuilder("smb://");
+        String[] segments = target.substring(end + 1).split("/", -1);
+        for (int i = 0; i < segments.length; i++) {
+            if (i > 0) sb.append('/');
+            // 路径中的 '+' 不表示空格
+            sb.append(URLDecoder.decode(segments[i].replace("+", "%2B"), "UTF-8"));
+        }
+        return sb.toString();
+    }
+
+    private String contentType(SambaFile file) {
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(file.parseExtName());
+        return mimeType != null ? mimeType : "application/octet-stream";
+    }
+
+    /**
+     * 请求来源在允许列表中时原样返回，用于 Access-Control-Allow-Origin；否则返回 null
+     * 访问仍由 URL 中的令牌控制，这里只决定页面脚本能否读取响应
+     */
+    private String allowedOrigin(String origin) {
+        return origin != null && ALLOWED_ORIGINS.contains(origin) ? origin : null;
+    }
+
+    private void appendCors(StringBuilder sb, String origin) {
+        if (origin == null) return;
+        sb.append("Access-Control-Allow-Origin: ").append(origin).append("\r\n");
+        sb.append("Access-Control-Expose-Headers: Accept-Ranges, Content-Length, Content-Range, ETag\r\n");
+        sb.append("Vary: Origin\r\n");
+    }
+
+    /**
+     * 跨域预检（fetch 带 Range 请求头时发送）
+     */
+    private void sendPreflight(OutputStream out, String origin, boolean keepAlive) throws IOException {
+        StringBuilder sb = new StringBuilder("HTTP/1.1 204 No Content\r\n");
+        appendCors(sb, origin);
+        if (origin != null) {
+            sb.append("Access-Control-Allow-Methods: GET, HEAD\r\n");
+            sb.append("Access-Control-Allow-Headers: Range, If-None-Match\r\n");
+            sb.append("Access-Control-Max-Age: 600\r\n");
+        }
+        sb.append("Content-Length: 0\r\n");
+        sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        out.write(sb.toString().getBytes("UTF-8"));
+    }
+
+    private void writeHeaders(OutputStream out, int status, String reason, String etag, String contentType,
+        long contentLength, String contentRange, String origin, boolean keepAlive) throws IOException {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        appendCors(sb, origin);
+        sb.append("Accept-Ranges: bytes\r\n");
+        sb.append("Cache-Control: no-cache\r\n");
+        sb.append("ETag: ").append(etag).append("\r\n");
+        if (contentType != null) sb.append("Content-Type: ").append(contentType).append("\r\n");
+        if (contentRange != null) sb.append("Content-Range: ").append(contentRange).append("\r\n");
+        sb.append("Content-Length: ").append(Math.max(contentLength, 0)).append("\r\n");
+        sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        out.write(sb.toString().getBytes("UTF-8"));
+    }
+
+    private void sendStatus(OutputStream out, int status, String reason, boolean keepAlive) throws IOException {
+        out.write(("HTTP/1.1 " + status + " " + reason + "\r\n"
+            + "Content-Length: 0\r\n"
+            + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes("UTF-8"));
+    }
+
+    /**
+     * 读取一行请求头（不含 CRLF）
+     */
+    private String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') break;
+            if (c != '\r') sb.append((char) c);
+            if (sb.length() > 8192) throw new IOException("Header line too long");
+        }
+        return c == -1 && sb.length() == 0 ? null : sb.toString();
+    }
+
+}
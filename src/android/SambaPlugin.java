@@ -34,23 +34,107 @@ import android.webkit.MimeTypeMap;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaArgs;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.PluginResult;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.net.MalformedURLException;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.greatape.bmds.BufferedMediaDataSource;
 
 /**
  * Samba 插件类
  */
 public class SambaPlugin extends CordovaPlugin {
 
+    // 分段并行下载默认区段大小
+    private static final int DOWNLOAD_CHUNK_SIZE = 4 * 1024 * 1024;
+    // 分页列表默认每页条目数
+    private static final int LIST_PAGE_SIZE = 500;
+    // 分页排序时每个临时排序段的条目数
+    private static final int LIST_RUN_SIZE = 10000;
+
+    // 目录传输默认遍历线程数和同时传输的文件数
+    private static final int TREE_WALKERS = 4;
+    private static final int TREE_TRANSFERS = 3;
+    // 目录删除默认同时删除的文件数
+    private static final int DELETE_WORKERS = 8;
+
+    // 分块读取默认每块字节数及未确认块数上限
+    private static final int STREAM_CHUNK_SIZE = 256 * 1024;
+    private static final int STREAM_WINDOW = 4;
+
+    // 传输进度事件通道
+    private ProgressChannel progressChannel = new ProgressChannel();
+
+    // 插件专用线程池（交互通道和批量通道）
+    private SambaExecutor executor = new SambaExecutor();
+
+    // SMB 会话池
+    private SessionPool sessionPool = new SessionPool();
+
+    // 持久化传输队列
+    private TransferManager transferManager;
+
+    // 正在执行的目录任务
+    private Map<String, TreeTask> trees = new ConcurrentHashMap<String, TreeTask>();
+
+    // 缩略图服务
+    private ThumbnailService thumbnailService;
+
+    // 本地回环 HTTP 服务
+    private SambaHttpServer httpServer = new SambaHttpServer();
+
+    // 正在推送的分块读取流
+    private Map<String, ChunkStream> streams = new ConcurrentHashMap<String, ChunkStream>();
+    private AtomicInteger streamSequence = new AtomicInteger();
+
+    /**
+     * 插件初始化
+     */
+    @Override
+    protected void pluginInitialize() {
+        File filesDir = cordova.getActivity().getFilesDir();
+        TransferJournal.setDirectory(new File(filesDir, "samba-transfers"));
+        transferManager = new TransferManager(cordova.getActivity().getApplicationContext(),
+            new File(filesDir, "samba-queue.json"), executor, progressChannel);
+        SambaFile.setSessionPool(sessionPool);
+        File cacheDir = cordova.getActivity().getCacheDir();
+        thumbnailService = new ThumbnailService(new File(cacheDir, "samba-thumbnails"), sessionPool);
+        GallerySource.setDiskCache(new File(cacheDir, "samba-gallery"), GallerySource.DEFAULT_DISK_CACHE_SIZE);
+        // 上次播放异常退出时遗留的媒体缓存文件
+        File[] mediaCaches = new File(cacheDir, "samba-media").listFiles();
+        if (mediaCaches != null) {
+            for (File file : mediaCaches) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 插件销毁时停止本地服务、会话保活和各个线程池
+     */
+    @Override
+    public void onDestroy() {
+        httpServer.stop();
+        sessionPool.shutdown();
+        executor.shutdown();
+        thumbnailService.shutdown();
+    }
+
     /**
      * 覆盖父类方法
      */
@@ -69,20 +153,45 @@ public class SambaPlugin extends CordovaPlugin {
                 String username = args.getString(0);
                 String password = args.getString(1);
                 SambaFile.setPrincipal(username, password);
+                ListingCache.clear();
+                transferManager.start();
                 callback.success();
                 break;
+            case "configure": configure(args, callback); break;
+            case "progressChannel": progressChannel.setCallback(callback); break;
             case "listEntries": listEntries(args, callback); break;
+            case "listEntriesPaged": listEntriesPaged(args, callback); break;
             case "readAsText": readAsText(args, callback); break;
             case "readAsByteArray": readAsByteArray(args, callback); break;
+            case "readAsStream": readAsStream(args, callback); break;
+            case "ackStream": ackStream(args, callback); break;
+            case "cancelStream": cancelStream(args, callback); break;
             case "openImage": openImage(args, callback); break;
+            case "thumbnail": thumbnail(args, callback); break;
+            case "thumbnails": thumbnails(args, callback); break;
             case "openMedia": openMedia(args, callback); break;
             case "openFile": openFile(args, callback); break;
             case "upload": upload(args, callback); break;
             case "download": download(args, callback); break;
+            case "resume": resume(args, callback); break;
+            case "downloadTree": downloadTree(args, callback); break;
+            case "uploadTree": uploadTree(args, callback); break;
+            case "pendingTransfers": pendingTransfers(callback); break;
+            case "pauseTransfer": pauseTransfer(args, callback); break;
+            case "cancelTransfer": cancelTransfer(args, callback); break;
+            case "prioritizeTransfer": prioritizeTransfer(args, callback); break;
+            case "listTransfers": listTransfers(callback); break;
             case "createFile": createFile(args, callback); break;
             case "createDirectory": createDirectory(args, callback); break;
             case "delete": delete(args, callback); break;
             case "wakeOnLan": wakeOnLan(args, callback); break;
+            case "startServer": startServer(callback); break;
+            case "stopServer": stopServer(callback); break;
+            case "connect": connect(args, callback); break;
+            case "poolStats": poolStats(callback); break;
+            case "executorStats": executorStats(callback); break;
+            case "galleryStats": galleryStats(callback); break;
+            case "mediaStats": mediaStats(callback); break;
             default:
                 callback.error("Undefined method:" + action);
                 return false;
@@ -90,19 +199,131 @@ public class SambaPlugin extends CordovaPlugin {
         return true;
     }
 
+    /**
+     * 修改插件配置
+     */
+    private void configure(CordovaArgs args, CallbackContext callback) throws JSONException {
+        JSONObject options = args.getJSONObject(0);
+        if (options.has("listCacheSize") || options.has("listCacheTtl")) {
+            ListingCache.configure(
+                options.optInt("listCacheSize", ListingCache.DEFAULT_MAX_SIZE),
+                options.optLong("listCacheTtl", ListingCache.DEFAULT_TTL));
+        }
+        if (options.has("progressRate")) {
+            progressChannel.setRate(options.getInt("progressRate"));
+        }
+        if (options.has("interactiveThreads")) {
+            executor.setThreads(SambaExecutor.INTERACTIVE, options.getInt("interactiveThreads"));
+        }
+        if (options.has("bulkThreads")) {
+            executor.setThreads(SambaExecutor.BULK, options.getInt("bulkThreads"));
+        }
+        if (options.has("treeThreads")) {
+            executor.setThreads(SambaExecutor.TREE, options.getInt("treeThreads"));
+        }
+        if (options.has("interactiveQueue")) {
+            executor.setMaxQueue(SambaExecutor.INTERACTIVE, options.getInt("interactiveQueue"));
+        }
+        if (options.has("bulkQueue")) {
+            executor.setMaxQueue(SambaExecutor.BULK, options.getInt("bulkQueue"));
+        }
+        if (options.has("treeQueue")) {
+            executor.setMaxQueue(SambaExecutor.TREE, options.getInt("treeQueue"));
+        }
+        if (options.has("transferConcurrency")) {
+            transferManager.setMaxConcurrent(options.getInt("transferConcurrency"));
+        }
+        if (options.has("transferHostConcurrency")) {
+            transferManager.setMaxPerHost(options.getInt("transferHostConcurrency"));
+        }
+        if (options.has("thumbnailCacheSize")) {
+            thumbnailService.setCacheSize(options.getLong("thumbnailCacheSize"));
+        }
+        if (options.has("thumbnailWorkers")) {
+            thumbnailService.setWorkers(options.getInt("thumbnailWorkers"));
+        }
+        if (options.has("galleryCacheSize")) {
+            File cacheDir = cordova.getActivity().getCacheDir();
+            GallerySource.setDiskCache(new File(cacheDir, "samba-gallery"), options.getLong("galleryCacheSize"));
+        }
+        // 未指定的项保持当前值
+        if (options.has("galleryIoThreads") || options.has("galleryDecodeThreads")) {
+            GalleryExecutor.setThreads(
+                options.optInt("galleryIoThreads", GalleryExecutor.getIoThreads()),
+                options.optInt("galleryDecodeThreads", GalleryExecutor.getDecodeThreads()));
+        }
+        if (options.has("galleryPrefetch")) {
+            GalleryPrefetcher.setDistance(options.getInt("galleryPrefetch"));
+        }
+        if (options.has("mediaOverlay")) {
+            PlayerActivity.statsOverlay = options.getBoolean("mediaOverlay");
+        }
+        if (options.has("mediaBlockSize") || options.has("mediaPrefetchBlocks") || options.has("mediaCacheSize")) {
+            SambaMediaDataSource.configure(
+                options.optInt("mediaBlockSize", SambaMediaDataSource.getDefaultBlockSize()),
+                options.optInt("mediaPrefetchBlocks", SambaMediaDataSource.getDefaultPrefetchBlocks()),
+                options.optLong("mediaCacheSize", SambaMediaDataSource.getDefaultDiskBudget()));
+        }
+        if (options.has("mediaIndex")) {
+            SambaMediaDataSource.setIndexPreload(options.getBoolean("mediaIndex"));
+        }
+        if (options.has("poolMaxSize")) {
+            sessionPool.setMaxSize(options.getInt("poolMaxSize"));
+        }
+        if (options.has("poolKeepAlive")) {
+            sessionPool.setKeepAliveInterval(options.getLong("poolKeepAlive"));
+        }
+        if (options.has("poolIdleTimeout")) {
+            sessionPool.setIdleTimeout(options.getLong("poolIdleTimeout"));
+        }
+        callback.success();
+    }
+
     /**
      * 列出目录下文件夹和文件
      */
     private void listEntries(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        submit(SambaExecutor.INTERACTIVE, args.optJSONObject(1), new PluginTask(args.optString(0), callback) {
             @Override
-            public void run() {
-                try {
-                    SambaFile file = new SambaFile(args.getString(0));
-                    callback.success(file.listEntries());
-                } catch (Exception e) {
-                    callback.error(e.getMessage());
-                }
+            protected void execute() throws Exception {
+                SambaFile file = new SambaFile(args.getString(0));
+                JSONObject options = args.optJSONObject(1);
+                boolean forceRefresh = options != null && options.optBoolean("forceRefresh");
+                callback.success(file.listEntries(forceRefresh, parseFields(options)));
+            }
+        });
+    }
+
+    /**
+     * 分页列出目录下文件夹和文件
+     * 每页通过保持的回调推送，首页无需等待整个目录枚举完成
+     */
+    private void listEntriesPaged(CordovaArgs args, CallbackContext callback) {
+        submit(SambaExecutor.INTERACTIVE, args.optJSONObject(1), new PluginTask(args.optString(0), callback) {
+            @Override
+            protected void execute() throws Exception {
+                SambaFile file = new SambaFile(args.getString(0));
+                JSONObject options = args.optJSONObject(1);
+                int pageSize = options == null ? LIST_PAGE_SIZE : options.optInt("pageSize", LIST_PAGE_SIZE);
+                boolean sorted = options != null && options.optBoolean("sorted");
+                File tempDir = cordova.getActivity().getCacheDir();
+
+                file.listEntries(new EntryPager(pageSize, sorted, LIST_RUN_SIZE, tempDir, parseFields(options),
+                    new SambaFile.OnPageListener() {
+                        @Override
+                        public void onPage(JSONArray entries, boolean done) {
+                            JSONObject page = new JSONObject();
+                            try {
+                                page.put("entries", entries);
+                                page.put("done", done);
+                            } catch (JSONException e) {
+                                // 键值均非空，不会发生
+                            }
+                            PluginResult result = new PluginResult(PluginResult.Status.OK, page);
+                            result.setKeepCallback(!done);
+                            callback.sendPluginResult(result);
+                        }
+                    }));
             }
         });
     }
@@ -111,15 +332,11 @@ public class SambaPlugin extends CordovaPlugin {
      * 读取文本文件
      */
     private void readAsText(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(args.optString(0), callback) {
             @Override
-            public void run() {
-                try {
-                    SambaFile file = new SambaFile(args.getString(0));
-                    callback.success(file.readAsText());
-                } catch (Exception e) {
-                    callback.error(e.getMessage());
-                }
+            protected void execute() throws Exception {
+                SambaFile file = new SambaFile(args.getString(0));
+                callback.success(file.readAsText());
             }
         });
     }
@@ -128,32 +345,75 @@ public class SambaPlugin extends CordovaPlugin {
      * 读取文件为字节数组
      */
     private void readAsByteArray(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(args.optString(0), callback) {
             @Override
-            public void run() {
-                try {
-                    SambaFile file = new SambaFile(args.getString(0));
-                    callback.success(file.readAsByteArray());
-                } catch (Exception e) {
-                    callback.error(e.getMessage());
-                }
+            protected void execute() throws Exception {
+                SambaFile file = new SambaFile(args.getString(0));
+                callback.success(file.readAsByteArray());
             }
         });
     }
 
+    /**
+     * 分块读取文件，以 ArrayBuffer 逐块推送
+     */
+    private void readAsStream(CordovaArgs args, CallbackContext callback) throws JSONException {
+        String id = String.valueOf(streamSequence.incrementAndGet());
+        SambaFile file;
+        try {
+            file = new SambaFile(args.getString(0));
+        } catch (MalformedURLException e) {
+            callback.error(e.getMessage());
+            return;
+        }
+        JSONObject options = args.optJSONObject(1);
+        int chunkSize = options == null ? STREAM_CHUNK_SIZE : options.optInt("chunkSize", STREAM_CHUNK_SIZE);
+        int window = options == null ? STREAM_WINDOW : options.optInt("window", STREAM_WINDOW);
+
+        // 每一块作为批量通道上的单独任务读取推送，等待 JS 确认时不占用线程
+        ChunkStream stream = new ChunkStream(id, file, chunkSize, window,
+            executor.lane(SambaExecutor.BULK, parsePriority(options)), sessionPool, new Runnable() {
+                @Override
+                public void run() {
+                    streams.remove(id);
+                }
+            });
+        streams.put(id, stream);
+        try {
+            stream.start(callback);
+        } catch (RejectedExecutionException e) {
+            streams.remove(id);
+            callback.error(e.getMessage());
+        }
+    }
+
+    /**
+     * 确认收到一块，允许继续推送
+     */
+    private void ackStream(CordovaArgs args, CallbackContext callback) throws JSONException {
+        ChunkStream stream = streams.get(args.getString(0));
+        if (stream != null) stream.ack();
+        callback.success();
+    }
+
+    /**
+     * 取消分块读取
+     */
+    private void cancelStream(CordovaArgs args, CallbackContext callback) throws JSONException {
+        ChunkStream stream = streams.get(args.getString(0));
+        if (stream != null) stream.cancel();
+        callback.success();
+    }
+
     /**
      * 创建文件
      */
     private void createFile(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(args.optString(0), callback) {
             @Override
-            public void run() {
-                try {
-                    SambaFile file = new SambaFile(args.getString(0));
-                    callback.success(file.createFile());
-                } catch (Exception e) {
-                    callback.error(e.getMessage());
-                }
+            protected void execute() throws Exception {
+                SambaFile file = new SambaFile(args.getString(0));
+                callback.success(file.createFile());
             }
         });
     }
@@ -162,126 +422,256 @@ public class SambaPlugin extends CordovaPlugin {
      * 创建文件夹
      */
     private void createDirectory(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(args.optString(0), callback) {
             @Override
-            public void run() {
-                try {
-                    SambaFile file = new SambaFile(args.getString(0));
-                    callback.success(file.createDirectory());
-                } catch (Exception e) {
-                    callback.error(e.getMessage());
-                }
+            protected void execute() throws Exception {
+                SambaFile file = new SambaFile(args.getString(0));
+                callback.success(file.createDirectory());
             }
         });
     }
 
     /**
      * 删除文件夹或文件
+     * 文件夹（路径以 / 结尾）并行递归删除并推送进度，有子项删除失败时回调错误结果
      */
     private void delete(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
+        String path = args.optString(0);
+        if (!path.endsWith("/")) {
+            submit(SambaExecutor.INTERACTIVE, null, new PluginTask(path, callback) {
+                @Override
+                protected void execute() throws Exception {
                     SambaFile file = new SambaFile(args.getString(0));
                     file.delete();
                     callback.success();
-                } catch (Exception e) {
-                    callback.error(e.getMessage());
+                }
+            });
+            return;
+        }
+
+        submit(SambaExecutor.TREE, args.optJSONObject(1), new PluginTask(null, callback) {
+            @Override
+            protected void execute() throws Exception {
+                JSONObject options = args.optJSONObject(1);
+                int walkers = options == null ? TREE_WALKERS : options.optInt("walkers", TREE_WALKERS);
+                int workers = options == null ? DELETE_WORKERS : options.optInt("workers", DELETE_WORKERS);
+
+                String id = TransferJournal.createId("delete", path, "");
+                TreeDelete task = new TreeDelete(id, walkers, workers, sessionPool, progressChannel);
+                trees.put(id, task);
+                try {
+                    JSONObject result = task.run(path);
+                    if (result.getJSONArray("failures").length() > 0) {
+                        callback.error(result);
+                    } else {
+                        callback.success(result);
+                    }
+                } finally {
+                    trees.remove(id);
                 }
             }
         });
     }
 
     /**
-     * 上传文件
+     * 上传文件（加入传输队列，完成时回调）
      */
     private void upload(CordovaArgs args, CallbackContext callback) throws JSONException {
-        cordova.getThreadPool().execute(new Runnable() {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(null, callback) {
             @Override
-            public void run() {
-                try {
-                    String localPath = args.getString(0);
-                    String smbPath = args.getString(1);
-
-                    // 将路径解析为本地原生路径
-                    Context context = cordova.getActivity().getApplicationContext();
-                    String nativePath = NativePath.parse(context, localPath);
-                    // 获取要上传文件的文件名
-                    int index = nativePath.lastIndexOf("/");
-                    String fileName = nativePath.substring(index + 1);
-
-                    SambaFile smbFile = new SambaFile(smbPath + fileName);
-                    JSONObject result = smbFile.upload(nativePath, new SambaFile.OnProgressListener() {
-                        @Override
-                        public void onProgress(float progress) {
-                            webView.sendJavascript("window.samba.onProgress(" + progress + ")");
-                        }
-                    });
-                    callback.success(result);
-                } catch (Exception e) {
-                    callback.error(e.getMessage());
-                }
+            protected void execute() throws Exception {
+                String localPath = args.getString(0);
+                String smbPath = args.getString(1);
+                JSONObject options = args.optJSONObject(2);
+
+                // 将路径解析为本地原生路径
+                Context context = cordova.getActivity().getApplicationContext();
+                String nativePath = NativePath.parse(context, localPath);
+                // 获取要上传文件的文件名
+                int index = nativePath.lastIndexOf("/");
+                String fileName = nativePath.substring(index + 1);
+
+                transferManager.enqueue(TransferJournal.UPLOAD, nativePath, smbPath + fileName,
+                    1, 0, parsePriority(options), callback);
             }
         });
     }
 
     /**
-     * 下载文件
+     * 下载文件（加入传输队列，完成时回调）
      */
     private void download(CordovaArgs args, CallbackContext callback) throws JSONException {
-        cordova.getThreadPool().execute(new Runnable() {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(null, callback) {
             @Override
-            public void run() {
-                try {
-                    String smbPath = args.getString(0);
-                    String fileName = smbPath.substring(smbPath.lastIndexOf("/"));
-                    SambaFile smbFile = new SambaFile(smbPath);
-                    String localPath = getExternalStoragePath(smbFile.getGroupType()) + fileName;
+            protected void execute() throws Exception {
+                String smbPath = args.getString(0);
+                JSONObject options = args.optJSONObject(1);
+                String fileName = smbPath.substring(smbPath.lastIndexOf("/"));
+                SambaFile smbFile = new SambaFile(smbPath);
+                String localPath = getExternalStoragePath(smbFile.getGroupType()) + fileName;
 
-                    smbFile.download(localPath, new SambaFile.OnProgressListener() {
-                        @Override
-                        public void onProgress(float progress) {
-                            webView.sendJavascript("window.samba.onProgress(" + progress + ")");
-                        }
-                    });
+                // 并发数大于 1 时启用分段并行下载
+                int threads = options == null ? 1 : options.optInt("threads", 1);
+                int chunkSize = options == null ? DOWNLOAD_CHUNK_SIZE : options.optInt("chunkSize", DOWNLOAD_CHUNK_SIZE);
+
+                transferManager.enqueue(TransferJournal.DOWNLOAD, smbPath, localPath,
+                    threads, chunkSize, parsePriority(options), callback);
+            }
+        });
+    }
+
+    /**
+     * 继续已暂停、失败或中断的上传或下载
+     */
+    private void resume(CordovaArgs args, CallbackContext callback) {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(null, callback) {
+            @Override
+            protected void execute() throws Exception {
+                JSONObject options = args.optJSONObject(1);
+                int threads = options == null ? 1 : options.optInt("threads", 1);
+                int chunkSize = options == null ? DOWNLOAD_CHUNK_SIZE : options.optInt("chunkSize", DOWNLOAD_CHUNK_SIZE);
+                transferManager.resume(args.getString(0), threads, chunkSize, parsePriority(options), callback);
+            }
+        });
+    }
+
+    /**
+     * 暂停传输
+     */
+    private void pauseTransfer(CordovaArgs args, CallbackContext callback) throws JSONException {
+        if (transferManager.pause(args.getString(0))) {
+            callback.success();
+        } else {
+            callback.error("Transfer not found: " + args.getString(0));
+        }
+    }
+
+    /**
+     * 取消传输并删除不完整的目标文件（目录传输保留已完成的文件）
+     */
+    private void cancelTransfer(CordovaArgs args, CallbackContext callback) {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(null, callback) {
+            @Override
+            protected void execute() throws Exception {
+                TreeTask tree = trees.get(args.getString(0));
+                if (tree != null) {
+                    tree.cancel();
+                    callback.success();
+                } else if (transferManager.cancel(args.getString(0))) {
+                    callback.success();
+                } else {
+                    callback.error("Transfer not found: " + args.getString(0));
+                }
+            }
+        });
+    }
+
+    /**
+     * 调整排队中传输的优先级
+     */
+    private void prioritizeTransfer(CordovaArgs args, CallbackContext callback) throws JSONException {
+        int priority = SambaExecutor.parsePriority(args.getString(1));
+        if (transferManager.setPriority(args.getString(0), priority)) {
+            callback.success();
+        } else {
+            callback.error("Transfer not found: " + args.getString(0));
+        }
+    }
+
+    /**
+     * 列出传输队列中的所有任务
+     */
+    private void listTransfers(CallbackContext callback) throws JSONException {
+        callback.success(transferManager.list());
+    }
+
+    /**
+     * 递归下载文件夹，默认保存到下载目录下的同名文件夹
+     */
+    private void downloadTree(CordovaArgs args, CallbackContext callback) {
+        submit(SambaExecutor.TREE, args.optJSONObject(1), new PluginTask(null, callback) {
+            @Override
+            protected void execute() throws Exception {
+                String smbPath = args.getString(0);
+                if (!smbPath.endsWith("/")) smbPath += "/";
+                JSONObject options = args.optJSONObject(1);
+
+                String name = smbPath.substring(smbPath.lastIndexOf("/", smbPath.length() - 2) + 1);
+                String localPath = options == null ? null : options.optString("localPath", null);
+                if (localPath == null) {
+                    localPath = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS) + "/" + name;
+                }
+                if (!localPath.endsWith("/")) localPath += "/";
 
+                TreeTransfer transfer = createTreeTransfer(TransferJournal.DOWNLOAD, smbPath, localPath, options);
+                try {
+                    callback.success(transfer.run(smbPath, localPath));
+                } finally {
+                    trees.remove(transfer.getId());
                     // 更新系统相册
-                    MediaScannerConnection.scanFile(
-                        cordova.getActivity(),
-                        new String[]{ localPath },
-                        new String[]{ getMimeType(localPath) },
-                        null
-                    );
-                    callback.success(localPath);
-                } catch (Exception e) {
-                    callback.error(e.getMessage());
+                    MediaScannerConnection.scanFile(cordova.getActivity(), transfer.getDownloaded(), null, null);
                 }
             }
         });
     }
 
     /**
-     * 用本地应用打开文件
+     * 递归上传本地文件夹到远程目录下的同名文件夹
      */
-    private void openFile(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+    private void uploadTree(CordovaArgs args, CallbackContext callback) {
+        submit(SambaExecutor.TREE, args.optJSONObject(2), new PluginTask(null, callback) {
             @Override
-            public void run() {
+            protected void execute() throws Exception {
+                Context context = cordova.getActivity().getApplicationContext();
+                String nativePath = NativePath.parse(context, args.getString(0));
+                if (nativePath.endsWith("/")) nativePath = nativePath.substring(0, nativePath.length() - 1);
+                String smbPath = args.getString(1);
+                if (!smbPath.endsWith("/")) smbPath += "/";
+                smbPath += nativePath.substring(nativePath.lastIndexOf("/") + 1) + "/";
+
+                TreeTransfer transfer = createTreeTransfer(TransferJournal.UPLOAD, nativePath, smbPath, args.optJSONObject(2));
                 try {
-                    String path = args.getString(0);
-                    String mimeType = getMimeType(path);
-
-                    Intent intent = new Intent(Intent.ACTION_VIEW);
-                    intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                    intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-                    intent.setDataAndType(Uri.parse(path), mimeType);
-                    cordova.getActivity().startActivity(intent);
-
-                    callback.success(mimeType);
-                } catch (Exception e) {
-                    callback.error(e.getMessage());
+                    callback.success(transfer.run(nativePath, smbPath));
+                } finally {
+                    trees.remove(transfer.getId());
+                }
+            }
+        });
+    }
+
+    /**
+     * 列出所有可续传的传输
+     */
+    private void pendingTransfers(CallbackContext callback) {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(null, callback) {
+            @Override
+            protected void execute() throws Exception {
+                JSONArray result = new JSONArray();
+                for (TransferJournal journal : TransferJournal.list()) {
+                    result.put(journal.toJSON());
                 }
+                callback.success(result);
+            }
+        });
+    }
+
+    /**
+     * 用本地应用打开文件
+     */
+    private void openFile(CordovaArgs args, CallbackContext callback) {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(null, callback) {
+            @Override
+            protected void execute() throws Exception {
+                String path = args.getString(0);
+                String mimeType = getMimeType(path);
+
+                Intent intent = new Intent(Intent.ACTION_VIEW);
+                intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                intent.setDataAndType(Uri.parse(path), mimeType);
+                cordova.getActivity().startActivity(intent);
+
+                callback.success(mimeType);
             }
         });
     }
@@ -290,42 +680,110 @@ public class SambaPlugin extends CordovaPlugin {
      * 打开图片
      */
     private void openImage(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(args.optString(0), callback) {
             @Override
-            public void run() {
-                try {
-                    String path = args.getString(0);
-                    String parentPath = path.substring(0, path.lastIndexOf("/") + 1);
-                    SambaFile directory = new SambaFile(parentPath);
-                    List<SambaFile> imageFiles = directory.listImages();
+            protected void execute() throws Exception {
+                String path = args.getString(0);
+                String parentPath = path.substring(0, path.lastIndexOf("/") + 1);
+                SambaFile directory = new SambaFile(parentPath);
+                List<SambaFile> imageFiles = directory.listImages();
 
-                    GalleryActivity.gallerySource = new GallerySource() {
-                        @Override
-                        public int currentIndex() {
-                            for (int i = 0; i < size(); i++) {
-                                if (imageFiles.get(i).getPath().equals(path)) return i;
-                            }
-                            return 0;
-                        }
-                        @Override
-                        public int size() {
-                            return imageFiles.size();
-                        }
-                        @Override
-                        public String key(int index) {
-                            return imageFiles.get(index).getPath();
+                GalleryActivity.gallerySource = new GallerySource() {
+                    @Override
+                    public int currentIndex() {
+                        for (int i = 0; i < size(); i++) {
+                            if (imageFiles.get(i).getPath().equals(path)) return i;
                         }
+                        return 0;
+                    }
+                    @Override
+                    public int size() {
+                        return imageFiles.size();
+                    }
+                    @Override
+                    public String key(int index) {
+                        return imageFiles.get(index).getPath();
+                    }
+                    @Override
+                    public byte[] data(int index) throws IOException {
+                        return imageFiles.get(index).readAsByteArray();
+                    }
+                    @Override
+                    public InputStream stream(int index) throws IOException {
+                        return imageFiles.get(index).getLeasedInputStream();
+                    }
+                    @Override
+                    public String version(int index) throws IOException {
+                        SambaFile file = imageFiles.get(index);
+                        return file.length() + "|" + file.lastModified();
+                    }
+                };
+
+                Intent intent = new Intent(cordova.getActivity(), GalleryActivity.class);
+                cordova.getActivity().startActivity(intent);
+                callback.success();
+            }
+        });
+    }
+
+    /**
+     * 获取图片缩略图
+     */
+    private void thumbnail(CordovaArgs args, CallbackContext callback) throws JSONException {
+        int maxSize = parseMaxSize(args);
+        if (maxSize <= 0) {
+            callback.error("Invalid thumbnail size: " + maxSize);
+            return;
+        }
+        submit(SambaExecutor.INTERACTIVE, args.optJSONObject(2), new PluginTask(null, callback) {
+            @Override
+            protected void execute() throws Exception {
+                JSONObject options = args.optJSONObject(2);
+                boolean webp = options != null && "webp".equals(options.optString("format"));
+                callback.success(thumbnailService.get(new SambaFile(args.getString(0)), maxSize, webp));
+            }
+        });
+    }
+
+    /**
+     * 批量获取目录下所有图片的缩略图，每生成一张推送一次，最后推送 { done: true, count, failures }
+     */
+    private void thumbnails(CordovaArgs args, CallbackContext callback) throws JSONException {
+        int maxSize = parseMaxSize(args);
+        if (maxSize <= 0) {
+            callback.error("Invalid thumbnail size: " + maxSize);
+            return;
+        }
+        submit(SambaExecutor.INTERACTIVE, args.optJSONObject(2), new PluginTask(args.optString(0), callback) {
+            @Override
+            protected void execute() throws Exception {
+                JSONObject options = args.optJSONObject(2);
+                boolean webp = options != null && "webp".equals(options.optString("format"));
+                List<SambaFile> images = new SambaFile(args.getString(0)).listImages();
+
+                AtomicInteger remaining = new AtomicInteger(images.size());
+                JSONArray failures = new JSONArray();
+                if (images.isEmpty()) sendThumbnailsDone(callback, 0, failures);
+                for (SambaFile image : images) {
+                    thumbnailService.submit(new Runnable() {
                         @Override
-                        public byte[] data(int index) throws IOException {
-                            return imageFiles.get(index).readAsByteArray();
+                        public void run() {
+                            try {
+                                PluginResult result = new PluginResult(PluginResult.Status.OK,
+                                    thumbnailService.get(image, maxSize, webp));
+                                result.setKeepCallback(true);
+                                callback.sendPluginResult(result);
+                            } catch (Exception e) {
+                                // 任何异常都计为失败，保证最后的 done 一定会推送
+                                synchronized (failures) {
+                                    failures.put(image.getPath());
+                                }
+                            }
+                            if (remaining.decrementAndGet() == 0) {
+                                sendThumbnailsDone(callback, images.size(), failures);
+                            }
                         }
-                    };
-
-                    Intent intent = new Intent(cordova.getActivity(), GalleryActivity.class);
-                    cordova.getActivity().startActivity(intent);
-                    callback.success();
-                } catch (Exception e) {
-                    callback.error(e.getMessage());
+                    });
                 }
             }
         });
@@ -335,20 +793,16 @@ public class SambaPlugin extends CordovaPlugin {
      * 打开音频或视频
      */
     private void openMedia(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(args.optString(0), callback) {
             @Override
-            public void run() {
-                try {
-                    String path = args.getString(0);
-                    PlayerActivity.dataSource = createBufferedMediaDataSource(path);
-                    PlayerActivity.timedTextFile = createTempSubtitleFile(path);
+            protected void execute() throws Exception {
+                String path = args.getString(0);
+                PlayerActivity.dataSource = createMediaDataSource(path);
+                PlayerActivity.timedTextFile = createTempSubtitleFile(path);
 
-                    Intent intent = new Intent(cordova.getActivity(), PlayerActivity.class);
-                    cordova.getActivity().startActivity(intent);
-                    callback.success();
-                } catch (Exception e) {
-                    callback.error(e.getMessage());
-                }
+                Intent intent = new Intent(cordova.getActivity(), PlayerActivity.class);
+                cordova.getActivity().startActivity(intent);
+                callback.success();
             }
         });
     }
@@ -357,25 +811,153 @@ public class SambaPlugin extends CordovaPlugin {
      * 网络唤醒
      */
     private void wakeOnLan(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(null, callback) {
             @Override
-            public void run() {
-                try {
-                    String mac = args.getString(0);
-                    int port = args.getInt(1);
-                    WakeOnLan.broadcast(mac, port);
-                    callback.success();
-                } catch (Exception e) {
-                    callback.error(e.getMessage());
-                }
+            protected void execute() throws Exception {
+                String mac = args.getString(0);
+                int port = args.getInt(1);
+                WakeOnLan.broadcast(mac, port);
+                callback.success();
             }
         });
     }
 
+    /**
+     * 启动本地 HTTP 服务，返回带令牌的根地址
+     */
+    private void startServer(CallbackContext callback) {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(null, callback) {
+            @Override
+            protected void execute() throws Exception {
+                httpServer.start();
+                callback.success(httpServer.getBaseUrl());
+            }
+        });
+    }
+
+    /**
+     * 停止本地 HTTP 服务
+     */
+    private void stopServer(CallbackContext callback) {
+        httpServer.stop();
+        callback.success();
+    }
+
+    /**
+     * 预先建立并认证 SMB 会话
+     */
+    private void connect(CordovaArgs args, CallbackContext callback) {
+        submit(SambaExecutor.INTERACTIVE, null, new PluginTask(null, callback) {
+            @Override
+            protected void execute() throws Exception {
+                sessionPool.connect(args.getString(0));
+                callback.success();
+            }
+        });
+    }
+
+    /**
+     * 获取会话池统计
+     */
+    private void poolStats(CallbackContext callback) throws JSONException {
+        callback.success(sessionPool.stats());
+    }
+
+    /**
+     * 获取线程池各通道统计
+     */
+    private void executorStats(CallbackContext callback) throws JSONException {
+        callback.success(executor.stats());
+    }
+
+    /**
+     * 获取图片浏览加载统计
+     */
+    private void galleryStats(CallbackContext callback) throws JSONException {
+        callback.success(GallerySource.stats());
+    }
+
+    /**
+     * 获取最近一次媒体播放统计
+     */
+    private void mediaStats(CallbackContext callback) throws JSONException {
+        callback.success(PlaybackStats.stats());
+    }
+
     ///////////////////////////////////////////////////////
     // 私有工具方法
     ///////////////////////////////////////////////////////
 
+    /**
+     * 在插件线程池的指定通道执行任务，options.priority 为优先级提示
+     * 通道队列已满时直接回调错误
+     */
+    private void submit(int lane, JSONObject options, PluginTask task) {
+        try {
+            executor.execute(lane, parsePriority(options), task);
+        } catch (RejectedExecutionException e) {
+            task.callback.error(e.getMessage());
+        }
+    }
+
+    /**
+     * 创建目录传输并登记，以便通过 cancelTransfer 取消
+     */
+    private TreeTransfer createTreeTransfer(String direction, String source, String destination, JSONObject options) {
+        String id = TransferJournal.createId(direction + "Tree", source, destination);
+        int walkers = options == null ? TREE_WALKERS : options.optInt("walkers", TREE_WALKERS);
+        int transfers = options == null ? TREE_TRANSFERS : options.optInt("transfers", TREE_TRANSFERS);
+        boolean skipExisting = options == null || options.optBoolean("skipExisting", true);
+
+        // 遍历在目录通道等待，逐个文件的传输与其他上传下载一起在批量通道执行
+        TreeTransfer transfer = new TreeTransfer(id, direction, walkers, transfers, skipExisting,
+            sessionPool, executor.lane(SambaExecutor.BULK, parsePriority(options)), progressChannel);
+        trees.put(id, transfer);
+        return transfer;
+    }
+
+    /**
+     * 解析缩略图长边上限，未传时使用默认值
+     */
+    private int parseMaxSize(CordovaArgs args) throws JSONException {
+        return args.isNull(1) ? ThumbnailService.DEFAULT_MAX_SIZE : args.getInt(1);
+    }
+
+    /**
+     * 批量缩略图全部结束
+     */
+    private void sendThumbnailsDone(CallbackContext callback, int count, JSONArray failures) {
+        JSONObject done = new JSONObject();
+        try {
+            done.put("done", true);
+            done.put("count", count);
+            done.put("failures", failures);
+        } catch (JSONException e) {
+            // 键值均非空，不会发生
+        }
+        callback.success(done);
+    }
+
+    /**
+     * 解析 options.priority 优先级提示
+     */
+    private int parsePriority(JSONObject options) {
+        return SambaExecutor.parsePriority(options == null ? null : options.optString("priority", null));
+    }
+
+    /**
+     * 解析需要返回的字段列表，未指定时返回 null（全部字段）
+     */
+    private Set<String> parseFields(JSONObject options) throws JSONException {
+        JSONArray array = options == null ? null : options.optJSONArray("fields");
+        if (array == null) return null;
+        Set<String> fields = new LinkedHashSet<String>();
+        for (int i = 0; i < array.length(); i++) {
+            fields.add(array.getString(i));
+        }
+        return fields;
+    }
+
     /**
      * 根据文件路径获取 MimeType
      */
@@ -404,24 +986,11 @@ public class SambaPlugin extends CordovaPlugin {
     }
 
     /**
-     * 创建缓存媒体数据源
+     * 创建分块缓存的媒体数据源
      */
-    private BufferedMediaDataSource createBufferedMediaDataSource(String path) throws IOException {
-        SambaFile file = new SambaFile(path);
-        return new BufferedMediaDataSource(new BufferedMediaDataSource.StreamCreator() {
-            @Override
-            public InputStream openStream() throws IOException {
-                return file.getInputStream();
-            }
-            @Override
-            public long length() throws IOException {
-                return file.length();
-            }
-            @Override
-            public String typeName() {
-                return "SmbFile";
-            }
-        });
+    private SambaMediaDataSource createMediaDataSource(String path) throws IOException {
+        File cacheDir = new File(cordova.getActivity().getCacheDir(), "samba-media");
+        return new SambaMediaDataSource(new SambaFile(path), cacheDir);
     }
 
     /**
@@ -449,4 +1018,47 @@ public class SambaPlugin extends CordovaPlugin {
         }
     }
 
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 插件任务
+     * 访问 SMB 时先从会话池获取对应主机的会话使用权，结束后释放；异常统一回调给 JS
+     */
+    private abstract class PluginTask implements Runnable {
+
+        private String path;
+        private CallbackContext callback;
+        private SessionPool.Lease lease;
+
+        /**
+         * @param String path 要访问的 SMB 路径，不访问 SMB 或执行时才能确定的传 null
+         * @param CallbackContext callback
+         */
+        public PluginTask(String path, CallbackContext callback) {
+            this.path = path;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (path != null) acquire(path);
+                execute();
+            } catch (Exception e) {
+                callback.error(e.getMessage());
+            } finally {
+                if (lease != null) lease.release();
+            }
+        }
+
+        // 执行中才确定 SMB 路径时调用
+        protected void acquire(String path) throws IOException {
+            if (lease == null) lease = sessionPool.acquire(path);
+        }
+
+        protected abstract void execute() throws Exception;
+    }
+
 }
@@ -0,0 +1,373 @@
+/**
+ * Session Pool
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.SmbFile;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * SMB 会话池
+ * jcifs 在内部按服务器地址复用传输连接和会话，但空闲超过 soTimeout（默认 35 秒）即断开，
+ * 下次请求需重新协商和认证。本类按（主机, 认证信息）管理会话：
+ * 限制同时进行的 SMB 请求数，空闲时定期发送轻量请求保持连接，长时间未使用后不再保活任其断开，
+ * 并支持在使用前预先建立连接。长时间的传输只在每次读写期间持有使用权
+ */
+class SessionPool {
+
+    public static final int DEFAULT_MAX_SIZE = 8;
+    public static final long DEFAULT_KEEP_ALIVE = 20 * 1000;
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    private Map<Key, Session> sessions = new ConcurrentHashMap<Key, Session>();
+    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private long keepAliveInterval;
+
+    private long created;
+    private long evicted;
+
+    public SessionPool() {
+        setKeepAliveInterval(DEFAULT_KEEP_ALIVE);
+    }
+
+    /**
+     * 设置每个会话同时进行的最大请求数，对新建的会话生效
+     * @param int maxSize
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(maxSize, 1);
+    }
+
+    /**
+     * 设置会话空闲多久后被淘汰
+     * @param long idleTimeout 毫秒
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * 设置空闲会话的保活周期，应小于 jcifs 的 soTimeout
+     * @param long interval 毫秒
+     */
+    public synchronized void setKeepAliveInterval(long interval) {
+        if (interval <= 0 || interval == keepAliveInterval) return;
+        keepAliveInterval = interval;
+        scheduler.shutdownNow();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                keepAlive();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 预先建立并认证会话
+     * @param String path 主机或任意 SMB 路径，如 smb://10.0.0.2/share/
+     */
+    public void connect(String path) throws IOException {
+        Lease lease = acquire(path);
+        try {
+            lease.session.ping();
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * 获取会话使用权，达到上限时等待
+     * 使用权应只在 SMB 请求期间持有，不要跨越等待 JS 或本地 IO 的时间
+     * @param String path 要访问的 SMB 路径
+     * @return Lease 使用完毕后必须调用 release()
+     */
+    public Lease acquire(String path) throws IOException {
+        URL url = parse(path);
+        NtlmPasswordAuthentication auth = SambaFile.getAuthentication();
+        Key key = new Key(url.getHost(), auth);
+        Session session;
+        synchronized (this) {
+            session = sessions.get(key);
+            if (session == null) {
+                session = new Session(url.getHost(), auth, maxSize);
+                sessions.put(key, session);
+                created++;
+            }
+            session.active++;
+            session.lastUsed = SystemClock.elapsedRealtime();
+        }
+        session.remember(url);
+
+        try {
+            session.permits.acquire();
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                session.active--;
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for SMB session");
+        }
+        return new Lease(session);
+    }
+
+    /**
+     * 包装 SMB 文件输入流，每次读取期间持有会话使用权，两次读取之间（如解码、写入本地）不占用
+     * @param String path 文件的 SMB 路径
+     * @param InputStream in SmbFileInputStream 等
+     * @return InputStream
+     */
+    public InputStream leased(String path, InputStream in) {
+        return new LeasedInputStream(path, in);
+    }
+
+    /**
+     * 会话池统计
+     * @return JSONObject { active, idle, created, evicted, sessions: [...] }
+     */
+    public synchronized JSONObject stats() throws JSONException {
+        int active = 0;
+        int idle = 0;
+        JSONArray list = new JSONArray();
+        for (Map.Entry<Key, Session> entry : sessions.entrySet()) {
+            Session session = entry.getValue();
+            active += session.active;
+            if (session.active == 0) idle++;
+
+            JSONObject item = new JSONObject();
+            item.put("host", session.host);
+            item.put("user", session.auth == null ? "" : session.auth.getUsername());
+            item.put("active", session.active);
+            item.put("idleMillis", session.active > 0 ? 0 : SystemClock.elapsedRealtime() - session.lastUsed);
+            list.put(item);
+        }
+
+        JSONObject stats = new JSONObject();
+        stats.put("active", active);
+        stats.put("idle", idle);
+        stats.put("created", created);
+        stats.put("evicted", evicted);
+        stats.put("sessions", list);
+        return stats;
+    }
+
+    /**
+     * 停止保活
+     */
+    public synchronized void shutdown() {
+        scheduler.shutdownNow();
+        sessions.clear();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 淘汰长时间空闲的会话，对其余空闲会话发送保活请求
+     */
+    private void keepAlive() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Session> iterator;
+        synchronized (this) {
+            iterator = sessions.values().iterator();
+            while (iterator.hasNext()) {
+                Session session = iterator.next();
+                if (session.active == 0 && now - session.lastUsed > idleTimeout) {
+                    iterator.remove();
+                    evicted++;
+                }
+            }
+        }
+        for (Session session : sessions.values()) {
+            if (session.active > 0) continue;
+            try {
+                session.ping();
+            } catch (IOException e) {
+                // 保活失败时下次使用会重新连接
+            }
+        }
+    }
+
+    private URL parse(String path) throws MalformedURLException {
+        if (!path.contains("://")) path = "smb://" + path;
+        return new URL(null, path, new jcifs.smb.Handler());
+    }
+
+    private synchronized void release(Session session) {
+        session.active--;
+        session.lastUsed = SystemClock.elapsedRealtime();
+        session.permits.release();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 会话键：主机和完整的认证信息（域、用户名、密码），切换账户或密码后使用新的会话
+     */
+    private static class Key {
+        final String host;
+        final NtlmPasswordAuthentication auth;
+
+        Key(String host, NtlmPasswordAuthentication auth) {
+            this.host = host.toLowerCase();
+            this.auth = auth;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return host.equals(other.host) && Objects.equals(auth, other.auth);
+        }
+
+        @Override
+        public int hashCode() {
+            return host.hashCode() * 31 + (auth == null ? 0 : auth.hashCode());
+        }
+    }
+
+    /**
+     * 单个（主机, 认证信息）的会话
+     */
+    private static class Session {
+        final String host;
+        // 保活请求使用会话自己的认证信息，而不是当前的全局认证
+        final NtlmPasswordAuthentication auth;
+        final Semaphore permits;
+        int active;
+        long lastUsed;
+        // 最近访问的共享，保活请求需要落到某个共享上才会产生 SMB 流量
+        volatile String share;
+
+        Session(String host, NtlmPasswordAuthentication auth, int maxSize) {
+            this.host = host;
+            this.auth = auth;
+            this.permits = new Semaphore(maxSize, true);
+        }
+
+        void remember(URL url) {
+            String path = url.getPath();
+            int end = path.indexOf('/', 1);
+            if (end > 1) share = path.substring(1, end);
+        }
+
+        /**
+         * 建立连接并发送一个轻量请求，刷新 jcifs 传输连接的空闲计时
+         */
+        void ping() throws IOException {
+            String target = share == null ? "smb://" + host + "/" : "smb://" + host + "/" + share + "/";
+            SmbFile file = new SmbFile(target, auth);
+            file.connect();
+            if (share != null) file.exists();
+        }
+    }
+
+    /**
+     * 每次读取期间持有会话使用权的输入流
+     */
+    private class LeasedInputStream extends FilterInputStream {
+        private String path;
+
+        LeasedInputStream(String path, InputStream in) {
+            super(in);
+            this.path = path;
+        }
+
+        @Override
+        public int read() throws IOException {
+            Lease lease = acquire(path);
+            try {
+                return in.read();
+            } finally {
+                lease.release();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Lease lease = acquire(path);
+            try {
+                return in.read(b, off, len);
+            } finally {
+                lease.release();
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            Lease lease = acquire(path);
+            try {
+                return in.skip(n);
+            } finally {
+                lease.release();
+            }
+        }
+    }
+
+    /**
+     * 会话使用权
+     */
+    public class Lease {
+        private Session session;
+        private boolean released;
+
+        private Lease(Session session) {
+            this.session = session;
+        }
+
+        public void release() {
+            if (released) return;
+            released = true;
+            SessionPool.this.release(session);
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+/**
+ * Thumbnail Service
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 缩略图服务
+ * 优先使用 JPEG 内嵌的 EXIF 缩略图（只读取文件头）；没有或尺寸不够时先解码尺寸，
+ * 再以 inSampleSize 降采样解码，缩放后编码为小 JPEG 或 WebP。
+ * 结果保存在限定大小的磁盘缓存中，键为路径、尺寸、文件大小和修改时间
+ */
+class ThumbnailService {
+
+    public static final int DEFAULT_MAX_SIZE = 160;
+    public static final long DEFAULT_CACHE_SIZE = 50 * 1024 * 1024;
+    public static final int DEFAULT_WORKERS = 4;
+
+    // 解析文件头时允许回退的字节数，需覆盖 EXIF 段和尺寸信息
+    private static final int HEADER_LIMIT = 256 * 1024;
+    private static final int QUALITY = 80;
+
+    private DiskCache cache;
+    private SessionPool sessionPool;
+    private ExecutorService workers;
+
+    /**
+     * @param File directory 缓存目录
+     * @param SessionPool sessionPool
+     */
+    public ThumbnailService(File directory, SessionPool sessionPool) {
+        this.cache = new DiskCache(directory, DEFAULT_CACHE_SIZE);
+        this.sessionPool = sessionPool;
+        this.workers = Executors.newFixedThreadPool(DEFAULT_WORKERS);
+    }
+
+    /**
+     * 设置缓存最大字节数
+     * @param long maxSize
+     */
+    public void setCacheSize(long maxSize) {
+        cache.setMaxSize(maxSize);
+    }
+
+    /**
+     * 设置批量生成的并发数
+     * @param int threads
+     */
+    public synchronized void setWorkers(int threads) {
+        workers.shutdown();
+        workers = Executors.newFixedThreadPool(Math.max(threads, 1));
+    }
+
+    /**
+     * 获取缩略图，缓存中没有时生成
+     * @param SambaFile file
+     * @param int maxSize 长边最大像素
+     * @param boolean webp 是否编码为 WebP（默认 JPEG）
+     * @return JSONObject { path, file, width, height, cached }
+     */
+    public JSONObject get(SambaFile file, int maxSize, boolean webp) throws IOException, JSONException {
+        String key;
+        SessionPool.Lease lease = sessionPool.acquire(file.getPath());
+        try {
+            key = file.getPath() + "|" + maxSize + "|" + (webp ? "webp" : "jpeg")
+                + "|" + file.length() + "|" + file.lastModified();
+        } finally {
+            lease.release();
+        }
+        File cached = cache.get(key);
+        boolean hit = cached != null;
+
+        int[] size = new int[2];
+        if (hit) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(cached.getPath(), options);
+            size[0] = options.outWidth;
+            size[1] = options.outHeight;
+        } else {
+            // 只在 SMB 请求期间持有会话使用权，解码、旋转和编码期间不占用
+            cached = cache.put(key, generate(file, maxSize, webp, size));
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("path", file.getPath());
+        result.put("file", "file://" + cached.getPath());
+        result.put("width", size[0]);
+        result.put("height", size[1]);
+        result.put("cached", hit);
+        return result;
+    }
+
+    /**
+     * 在批量线程池中获取缩略图
+     * @param Runnable task
+     */
+    public synchronized void submit(Runnable task) {
+        workers.execute(task);
+    }
+
+    /**
+     * 停止批量线程池
+     */
+    public synchronized void shutdown() {
+        workers.shutdownNow();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 生成缩略图并编码
+     * @param int[] size 输出缩略图宽高
+     */
+    private byte[] generate(SambaFile file, int maxSize, boolean webp, int[] size) throws IOException {
+        Bitmap bitmap;
+        int rotation = 0;
+
+        // 第一次读取：只读文件头，解析 EXIF 和原图尺寸
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        InputStream in = new BufferedInputStream(open(file), 16 * 1024);
+        try {
+            in.mark(HEADER_LIMIT);
+            ExifThumbnail exif = ExifThumbnail.read(in);
+            if (exif != null) {
+                rotation = exif.getRotation();
+                byte[] thumbnail = exif.getThumbnail();
+                if (thumbnail != null) {
+                    bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+                    if (bitmap != null && Math.max(bitmap.getWidth(), bitmap.getHeight()) >= maxSize) {
+                        return encode(bitmap, maxSize, rotation, webp, size);
+                    }
+                    // 内嵌缩略图太小，改为解码原图
+                    if (bitmap != null) bitmap.recycle();
+                }
+            }
+            in.reset();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Unsupported image: " + file.getPath());
+        }
+
+        // 第二次读取：按 2 的幂降采样解码，解码后的长边不小于 maxSize
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, maxSize);
+        in = new BufferedInputStream(open(file), 64 * 1024);
+        try {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (bitmap == null) {
+            throw new IOException("Cannot decode image: " + file.getPath());
+        }
+        return encode(bitmap, maxSize, rotation, webp, size);
+    }
+
+    /**
+     * 打开文件，打开和每次读取期间持有会话使用权
+     */
+    private InputStream open(SambaFile file) throws IOException {
+        SessionPool.Lease lease = sessionPool.acquire(file.getPath());
+        try {
+            return sessionPool.leased(file.getPath(), file.getInputStream());
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * 计算降采样倍数
+     */
+    static int sampleSize(int width, int height, int maxSize) {
+        int sampleSize = 1;
+        int longSide = Math.max(width, height);
+        while (longSide / (sampleSize * 2) >= maxSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * 缩放到长边不超过 maxSize，按 EXIF 方向旋转后编码
+     */
+    private byte[] encode(Bitmap bitmap, int maxSize, int rotation, boolean webp, int[] size) {
+        float scale = Math.min(1f, (float) maxSize / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        Matrix matrix = new Matrix();
+        matrix.postScale(scale, scale);
+        matrix.postRotate(rotation);
+        Bitmap thumbnail = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (thumbnail != bitmap) bitmap.recycle();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        thumbnail.compress(webp ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.JPEG, QUALITY, out);
+        size[0] = thumbnail.getWidth();
+        size[1] = thumbnail.getHeight();
+        thumbnail.recycle();
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,333 @@
+/**
+ * Transfer Journal
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 断点续传日志
+ * 每个传输任务在本地磁盘保存一份小文件，记录源路径、目标路径、源文件大小、
+ * 修改时间以及已确认写入的字节偏移，传输中断后可据此从断点继续
+ */
+class TransferJournal {
+
+    public static final String DOWNLOAD = "download";
+    public static final String UPLOAD = "upload";
+
+    // 每写入多少字节持久化一次偏移
+    public static final long COMMIT_INTERVAL = 4 * 1024 * 1024;
+
+    // 编号为 MD5 前 8 字节的十六进制，也是日志文件名
+    private static final Pattern ID_PATTERN = Pattern.compile("[0-9a-f]{16}");
+
+    private static File directory;
+
+    private String id;
+    private String direction;
+    private String source;
+    private String destination;
+    private long size;
+    private long lastModified;
+    private long offset;
+
+    // 已完成但尚未与 offset 连续的区段（并行下载时使用）
+    private TreeMap<Long, Long> pendingRanges = new TreeMap<Long, Long>();
+    private long committedOffset;
+
+    private TransferJournal() {
+    }
+
+    /**
+     * 设置日志存放目录
+     * @param File dir
+     */
+    public static void setDirectory(File dir) {
+        dir.mkdirs();
+        directory = dir;
+    }
+
+    /**
+     * 新建传输日志（覆盖同一源和目标的旧日志）
+     * @param String direction
+     * @param String source
+     * @param String destination
+     * @param long size 源文件大小
+     * @param long lastModified 源文件修改时间
+     * @return TransferJournal
+     */
+    public static TransferJournal create(String direction, String source, String destination,
+        long size, long lastModified) throws IOException {
+
+        TransferJournal journal = new TransferJournal();
+        journal.id = createId(direction, source, destination);
+        journal.direction = direction;
+        journal.source = source;
+        journal.destination = destination;
+        journal.size = size;
+        journal.lastModified = lastModified;
+        journal.save();
+        return journal;
+    }
+
+    /**
+     * 根据编号读取传输日志
+     * @param String id 来自 JS，不是合法编号时视为不存在，不会用于拼接路径
+     * @return TransferJournal 不存在时返回 null
+     */
+    public static TransferJournal load(String id) throws IOException {
+        if (id == null || !ID_PATTERN.matcher(id).matches()) return null;
+        File file = journalFile(id);
+        return file.exists() ? read(file) : null;
+    }
+
+    /**
+     * 列出所有未完成的传输日志
+     * 无法读取的日志被跳过，内容已损坏的日志同时删除，不影响其他日志
+     * @return List<TransferJournal>
+     */
+    public static List<TransferJournal> list() {
+        List<TransferJournal> journals = new ArrayList<TransferJournal>();
+        File[] files = requireDirectory().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().endsWith(".json")) continue;
+                try {
+                    journals.add(read(file));
+                } catch (CorruptedJournalException e) {
+                    file.delete();
+                } catch (IOException e) {
+                    // 暂时无法读取，下次再列出
+                }
+            }
+        }
+        return journals;
+    }
+
+    /**
+     * 判断源文件是否仍与日志记录一致
+     * 源文件大小或修改时间改变时已传输的数据不再可用
+     * @param long size
+     * @param long lastModified
+     * @return boolean
+     */
+    public boolean matches(long size, long lastModified) {
+        return this.size == size && this.lastModified == lastModified;
+    }
+
+    /**
+     * 确认顺序传输已写入到 offset 并立即写盘
+     * 调用方需保证目标端数据已落盘，并自行控制调用频率
+     * @param long offset
+     */
+    public synchronized void commit(long offset) throws IOException {
+        this.offset = offset;
+        save();
+    }
+
+    /**
+     * 确认并行传输的一个区段已写入
+     * 只有与已确认偏移连续的区段才会推进 offset，达到持久化间隔时写盘
+     * @param long start
+     * @param long end
+     */
+    public synchronized void commitRange(long start, long end) throws IOException {
+        pendingRanges.put(start, end);
+        Long next;
+        while ((next = pendingRanges.remove(offset)) != null) {
+            offset = next;
+        }
+        if (offset - committedOffset >= COMMIT_INTERVAL || offset == size) {
+            save();
+        }
+    }
+
+    /**
+     * 传输完成或日志失效后删除
+     */
+    public void delete() {
+        journalFile(id).delete();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public synchronized long getOffset() {
+        return offset;
+    }
+
+    /**
+     * 转换为 JSON 对象
+     * @return JSONObject
+     */
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("direction", direction);
+        json.put("source", source);
+        json.put("destination", destination);
+        json.put("size", size);
+        json.put("lastModified", lastModified);
+        json.put("offset", offset);
+        return json;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 先写临时文件再重命名，避免进程被杀时留下损坏的日志
+     */
+    private void save() throws IOException {
+        File file = journalFile(id);
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(toJSON().toString().getBytes("UTF-8"));
+        } catch (JSONException e) {
+            throw new IOException(e);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot write transfer journal: " + file);
+        }
+        committedOffset = offset;
+    }
+
+    private static TransferJournal read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        byte[] bytes = new byte[(int) file.length()];
+        try {
+            int len = 0;
+            while (len < bytes.length) {
+                int n = in.read(bytes, len, bytes.length - len);
+                if (n < 0) break;
+                len += n;
+            }
+        } finally {
+            in.close();
+        }
+
+        try {
+            JSONObject json = new JSONObject(new String(bytes, "UTF-8"));
+            TransferJournal journal = new TransferJournal();
+            journal.id = json.getString("id");
+            if (!ID_PATTERN.matcher(journal.id).matches() || !file.getName().equals(journal.id + ".json")) {
+                throw new CorruptedJournalException(file, null);
+            }
+            journal.direction = json.getString("direction");
+            journal.source = json.getString("source");
+            journal.destination = json.getString("destination");
+            journal.size = json.getLong("size");
+            journal.lastModified = json.getLong("lastModified");
+            journal.offset = json.getLong("offset");
+            journal.committedOffset = journal.offset;
+            return journal;
+        } catch (JSONException e) {
+            throw new CorruptedJournalException(file, e);
+        }
+    }
+
+    private static File journalFile(String id) {
+        return new File(requireDirectory(), id + ".json");
+    }
+
+    private static File requireDirectory() {
+        if (directory == null) {
+            throw new IllegalStateException("Transfer journal directory is not set");
+        }
+        return directory;
+    }
+
+    /**
+     * 以方向、源和目标生成固定编号，同一传输重复发起时复用
+     */
+    static String createId(String direction, String source, String destination) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest = md5.digest((direction + "\n" + source + "\n" + destination).getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 日志内容损坏（不是合法 JSON、缺少字段或编号与文件名不符）
+     */
+    private static class CorruptedJournalException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptedJournalException(File file, Throwable cause) {
+            super("Corrupted transfer journal: " + file, cause);
+        }
+    }
+
+}
@@ -0,0 +1,658 @@
+/**
+ * Transfer Manager
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.webkit.MimeTypeMap;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 传输队列管理
+ * 上传下载任务进入持久化队列，按优先级和加入顺序执行，同时运行的任务数受全局上限和
+ * 每台主机上限约束。任务可暂停、继续、取消，断点由 TransferJournal 记录；
+ * 队列保存在本地文件中，进程被杀后重新加载，状态变化与进度经由同一个 ProgressChannel 推送
+ */
+class TransferManager {
+
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+    public static final int DEFAULT_MAX_PER_HOST = 2;
+
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String PAUSED = "paused";
+    public static final String FAILED = "failed";
+    public static final String COMPLETED = "completed";
+    public static final String CANCELLED = "cancelled";
+
+    private Context context;
+    private File queueFile;
+    private SambaExecutor executor;
+    private ProgressChannel progressChannel;
+
+    private Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+    private long sequence;
+    private boolean started;
+
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private int maxPerHost = DEFAULT_MAX_PER_HOST;
+
+    /**
+     * 加载上次保存的队列，未完成的任务重新排队，调用 start() 后才开始执行；新加入的任务立即调度
+     * @param Context context 下载完成后更新系统相册使用
+     * @param File queueFile 队列保存位置
+     * @param SambaExecutor executor 任务在其批量通道上执行
+     * @param ProgressChannel progressChannel
+     */
+    public TransferManager(Context context, File queueFile, SambaExecutor executor,
+        ProgressChannel progressChannel) {
+
+        this.context = context;
+        this.queueFile = queueFile;
+        this.executor = executor;
+        this.progressChannel = progressChannel;
+        load();
+    }
+
+    /**
+     * 设置同时运行的任务数上限
+     * @param int maxConcurrent
+     */
+    public synchronized void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(maxConcurrent, 1);
+        schedule();
+    }
+
+    /**
+     * 设置每台主机同时运行的任务数上限
+     * @param int maxPerHost
+     */
+    public synchronized void setMaxPerHost(int maxPerHost) {
+        this.maxPerHost = Math.max(maxPerHost, 1);
+        schedule();
+    }
+
+    /**
+     * 开始执行恢复的任务（认证之后调用，避免恢复的任务以匿名身份连接）
+     */
+    public synchronized void start() {
+        started = true;
+        // 上次取消后进程在清理前退出的任务，清理后移出队列
+        Iterator<Job> iterator = jobs.values().iterator();
+        boolean removed = false;
+        while (iterator.hasNext()) {
+            Job job = iterator.next();
+            if (!CANCELLED.equals(job.state) || job.abort) continue;
+            try {
+                executor.execute(SambaExecutor.BULK, job.priority, new Runnable() {
+                    @Override
+                    public void run() {
+                        discard(job);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 批量通道已满，下次启动时再清理
+                continue;
+            }
+            iterator.remove();
+            removed = true;
+        }
+        if (removed) save();
+        schedule();
+    }
+
+    /**
+     * 加入传输任务
+     * 同一方向、源和目标的任务已在队列中时复用原任务，已暂停或失败的重新排队
+     * @param String direction TransferJournal.DOWNLOAD 或 TransferJournal.UPLOAD
+     * @param String source
+     * @param String destination
+     * @param int threads 下载并发数
+     * @param int chunkSize 分段下载区段大小
+     * @param int priority 数值越大越先执行
+     * @param CallbackContext callback 先保持回调推送任务状态（含编号），任务结束时再回调，可为 null
+     * @return String 任务编号
+     */
+    public synchronized String enqueue(String direction, String source, String destination,
+        int threads, int chunkSize, int priority, CallbackContext callback) {
+
+        String id = TransferJournal.createId(direction, source, destination);
+        Job job = jobs.get(id);
+        if (job == null) {
+            job = new Job();
+            job.id = id;
+            job.direction = direction;
+            job.source = source;
+            job.destination = destination;
+            job.sequence = ++sequence;
+            job.state = QUEUED;
+            jobs.put(id, job);
+        } else if (PAUSED.equals(job.state) || FAILED.equals(job.state)) {
+            job.state = QUEUED;
+            job.error = null;
+        }
+        // 再次加入的恢复任务由调用方发起，无需等待认证
+        job.restored = false;
+        job.threads = threads;
+        job.chunkSize = chunkSize;
+        job.priority = priority;
+        if (callback != null) {
+            // 持有锁时推送，保证先于任务结束的回调到达
+            try {
+                PluginResult result = new PluginResult(PluginResult.Status.OK, job.toJSON());
+                result.setKeepCallback(true);
+                callback.sendPluginResult(result);
+            } catch (JSONException e) {
+                // 键值均非空，不会发生
+            }
+            job.await(callback);
+        }
+
+        changed(job);
+        schedule();
+        return id;
+    }
+
+    /**
+     * 继续已暂停或失败的任务；队列中没有但存在传输日志的，校验源文件未改变后加入队列
+     * @param String id
+     * @param int threads 下载并发数
+     * @param int chunkSize 分段下载区段大小
+     * @param int priority
+     * @param CallbackContext callback 任务结束时回调
+     */
+    public void resume(String id, int threads, int chunkSize, int priority, CallbackContext callback)
+        throws IOException {
+
+        synchronized (this) {
+            Job job = jobs.get(id);
+            if (job != null) {
+                enqueue(job.direction, job.source, job.destination, threads, chunkSize, priority, callback);
+                return;
+            }
+        }
+
+        TransferJournal journal = TransferJournal.load(id);
+        if (journal == null) {
+            throw new IOException("Transfer not found: " + id);
+        }
+        if (TransferJournal.DOWNLOAD.equals(journal.getDirection())) {
+            SambaFile smbFile = new SambaFile(journal.getSource());
+            File localFile = new File(journal.getDestination());
+            // 远程文件已改变或本地数据不完整时日志失效
+            if (!journal.matches(smbFile.length(), smbFile.lastModified())
+                || localFile.length() < journal.getOffset()) {
+                journal.delete();
+                throw new IOException("Remote file has changed, transfer must restart");
+            }
+        } else {
+            File localFile = new File(journal.getSource());
+            SambaFile smbFile = new SambaFile(journal.getDestination());
+            // 本地文件已改变或远程数据不完整时日志失效
+            if (!journal.matches(localFile.length(), localFile.lastModified())
+                || !smbFile.exists() || smbFile.length() < journal.getOffset()) {
+                journal.delete();
+                throw new IOException("Local file has changed, transfer must restart");
+            }
+        }
+        enqueue(journal.getDirection(), journal.getSource(), journal.getDestination(),
+            threads, chunkSize, priority, callback);
+    }
+
+    /**
+     * 暂停任务，运行中的任务在下一次进度回调时中止，已确认的断点保留
+     * @param String id
+     * @return boolean 任务不存在或已结束时返回 false
+     */
+    public synchronized boolean pause(String id) {
+        Job job = jobs.get(id);
+        if (job == null || PAUSED.equals(job.state)) return false;
+        if (RUNNING.equals(job.state)) job.abort = true;
+        job.state = PAUSED;
+        changed(job);
+        return true;
+    }
+
+    /**
+     * 取消任务，删除传输日志和未传输完的目标文件
+     * @param String id
+     * @return boolean 任务不存在时返回 false
+     */
+    public boolean cancel(String id) {
+        Job job;
+        synchronized (this) {
+            job = jobs.get(id);
+            if (job == null) return false;
+            if (RUNNING.equals(job.state) || job.abort) {
+                // 由执行线程在中止后清理
+                job.abort = true;
+                job.state = CANCELLED;
+                // 立即保存，进程在执行线程清理前退出时不会被当作运行中的任务恢复
+                changed(job);
+                return true;
+            }
+            job.state = CANCELLED;
+            jobs.remove(id);
+            changed(job);
+        }
+        discard(job);
+        job.finish(new PluginResult(PluginResult.Status.ERROR, "Transfer cancelled"));
+        return true;
+    }
+
+    /**
+     * 修改任务优先级
+     * @param String id
+     * @param int priority
+     * @return boolean 任务不存在时返回 false
+     */
+    public synchronized boolean setPriority(String id, int priority) {
+        Job job = jobs.get(id);
+        if (job == null) return false;
+        job.priority = priority;
+        changed(job);
+        schedule();
+        return true;
+    }
+
+    /**
+     * 列出队列中的所有任务
+     * @return JSONArray [{ id, direction, source, destination, state, priority, transferred, total, error }]
+     */
+    public synchronized JSONArray list() throws JSONException {
+        JSONArray result = new JSONArray();
+        for (Job job : jobs.values()) {
+            result.put(job.toJSON());
+        }
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 在全局和主机上限之内启动排队的任务，优先级高的先启动，同优先级按加入顺序
+     * 调用 start() 之前跳过从队列文件恢复的任务
+     */
+    private synchronized void schedule() {
+        int running = 0;
+        Map<String, Integer> hosts = new HashMap<String, Integer>();
+        List<Job> queued = new ArrayList<Job>();
+        for (Job job : jobs.values()) {
+            if (RUNNING.equals(job.state) || job.abort) {
+                running++;
+                hosts.put(job.host(), count(hosts, job.host()) + 1);
+            } else if (QUEUED.equals(job.state) && (started || !job.restored)) {
+                queued.add(job);
+            }
+        }
+        Collections.sort(queued, new Comparator<Job>() {
+            @Override
+            public int compare(Job j1, Job j2) {
+                if (j1.priority != j2.priority) return j2.priority > j1.priority ? 1 : -1;
+                return j1.sequence < j2.sequence ? -1 : (j1.sequence == j2.sequence ? 0 : 1);
+            }
+        });
+
+        for (Job job : queued) {
+            if (running >= maxConcurrent) break;
+            int hostRunning = count(hosts, job.host());
+            if (hostRunning >= maxPerHost) continue;
+
+            try {
+                executor.execute(SambaExecutor.BULK, job.priority, new Runnable() {
+                    @Override
+                    public void run() {
+                        execute(job);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 批量通道已满，等下一个任务结束后再调度
+                break;
+            }
+            job.state = RUNNING;
+            job.error = null;
+            running++;
+            hosts.put(job.host(), hostRunning + 1);
+            changed(job);
+        }
+    }
+
+    private int count(Map<String, Integer> hosts, String host) {
+        Integer n = hosts.get(host);
+        return n == null ? 0 : n;
+    }
+
+    /**
+     * 在执行线程中运行任务
+     */
+    private void execute(Job job) {
+        Object result = null;
+        Exception error = null;
+        try {
+            // 传输中每次读写才获取会话使用权，不在整个传输期间占用
+            if (job.abort) throw new InterruptedIOException("Transfer " + job.state);
+            if (TransferJournal.DOWNLOAD.equals(job.direction)) {
+                result = runDownload(job);
+            } else {
+                result = runUpload(job);
+            }
+        } catch (Exception e) {
+            error = e;
+        }
+        finish(job, result, error);
+    }
+
+    /**
+     * 任务结束后更新状态、回调并调度下一个任务
+     */
+    private void finish(Job job, Object result, Exception error) {
+        PluginResult pluginResult;
+        boolean cancelled;
+        synchronized (this) {
+            job.abort = false;
+            cancelled = error != null && CANCELLED.equals(job.state);
+            if (error == null) {
+                // 已传输完成时忽略之后到达的暂停或取消
+                job.state = COMPLETED;
+                jobs.remove(job.id);
+                pluginResult = result instanceof JSONObject
+                    ? new PluginResult(PluginResult.Status.OK, (JSONObject) result)
+                    : new PluginResult(PluginResult.Status.OK, (String) result);
+            } else if (cancelled) {
+                jobs.remove(job.id);
+                pluginResult = new PluginResult(PluginResult.Status.ERROR, "Transfer cancelled");
+            } else if (PAUSED.equals(job.state) || QUEUED.equals(job.state)) {
+                // 暂停（或暂停后又继续）不结束回调，完成时再回调
+                pluginResult = null;
+            } else {
+                job.state = FAILED;
+                job.error = error.getMessage();
+                pluginResult = new PluginResult(PluginResult.Status.ERROR, String.valueOf(job.error));
+            }
+            changed(job);
+            schedule();
+        }
+        if (cancelled) discard(job);
+        if (pluginResult != null) job.finish(pluginResult);
+    }
+
+    /**
+     * 下载到本地，日志仍有效时从断点继续，完成后更新系统相册
+     */
+    private String runDownload(Job job) throws IOException, JSONException {
+        SambaFile smbFile = new SambaFile(job.source);
+        long size = smbFile.length();
+        long lastModified = smbFile.lastModified();
+
+        TransferJournal journal = TransferJournal.load(job.id);
+        if (journal == null || !journal.matches(size, lastModified)
+            || new File(job.destination).length() < journal.getOffset()) {
+            journal = TransferJournal.create(job.direction, job.source, job.destination, size, lastModified);
+        }
+        smbFile.download(job.destination, job.threads, job.chunkSize, journal, track(job));
+        journal.delete();
+
+        // 更新系统相册
+        String extension = MimeTypeMap.getFileExtensionFromUrl(job.destination).toLowerCase();
+        MediaScannerConnection.scanFile(
+            context,
+            new String[]{ job.destination },
+            new String[]{ MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension) },
+            null
+        );
+        return job.destination;
+    }
+
+    /**
+     * 上传到远程，日志仍有效时从断点继续
+     */
+    private JSONObject runUpload(Job job) throws IOException, JSONException {
+        File localFile = new File(job.source);
+        SambaFile smbFile = new SambaFile(job.destination);
+
+        TransferJournal journal = TransferJournal.load(job.id);
+        if (journal == null || !journal.matches(localFile.length(), localFile.lastModified())
+            || !smbFile.exists() || smbFile.length() < journal.getOffset()) {
+            journal = TransferJournal.create(job.direction, job.source, job.destination,
+                localFile.length(), localFile.lastModified());
+        }
+        JSONObject entry = smbFile.upload(job.source, journal, track(job));
+        journal.delete();
+        return entry;
+    }
+
+    /**
+     * 进度监听：记录进度并推送，任务被暂停或取消时抛出异常中止传输
+     */
+    private SambaFile.OnProgressListener track(Job job) {
+        SambaFile.OnProgressListener tracker = progressChannel.track(job.id, job.source);
+        return new SambaFile.OnProgressListener() {
+            @Override
+            public void onProgress(long transferred, long total) throws IOException {
+                if (job.abort) throw new InterruptedIOException("Transfer " + job.state);
+                job.transferred = transferred;
+                job.total = total;
+                tracker.onProgress(transferred, total);
+            }
+        };
+    }
+
+    /**
+     * 删除已取消任务的传输日志和不完整的目标文件
+     */
+    private void discard(Job job) {
+        try {
+            TransferJournal journal = TransferJournal.load(job.id);
+            if (journal == null) return;
+            journal.delete();
+            if (TransferJournal.DOWNLOAD.equals(job.direction)) {
+                new File(job.destination).delete();
+            } else {
+                new SambaFile(job.destination).delete();
+            }
+        } catch (IOException e) {
+            // 清理失败不影响取消
+        }
+    }
+
+    /**
+     * 任务状态改变：保存队列并推送状态事件
+     */
+    private void changed(Job job) {
+        save();
+        try {
+            progressChannel.send(job.toJSON());
+        } catch (JSONException e) {
+            // 忽略
+        }
+    }
+
+    /**
+     * 先写临时文件再重命名，避免进程被杀时留下损坏的队列
+     */
+    private synchronized void save() {
+        File temp = new File(queueFile.getPath() + ".tmp");
+        try {
+            JSONArray array = list();
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(array.toString().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            temp.renameTo(queueFile);
+        } catch (IOException | JSONException e) {
+            // 保存失败时保留上一次的队列
+        }
+    }
+
+    /**
+     * 读取保存的队列，上次运行中的任务重新排队
+     */
+    private synchronized void load() {
+        if (!queueFile.exists()) return;
+        try {
+            InputStream in = new FileInputStream(queueFile);
+            byte[] bytes = new byte[(int) queueFile.length()];
+            try {
+                int len = 0;
+                while (len < bytes.length) {
+                    int n = in.read(bytes, len, bytes.length - len);
+                    if (n < 0) break;
+                    len += n;
+                }
+            } finally {
+                in.close();
+            }
+
+            JSONArray array = new JSONArray(new String(bytes, "UTF-8"));
+            for (int i = 0; i < array.length(); i++) {
+                Job job = Job.fromJSON(array.getJSONObject(i));
+                job.sequence = ++sequence;
+                if (RUNNING.equals(job.state)) job.state = QUEUED;
+                job.restored = true;
+                jobs.put(job.id, job);
+            }
+        } catch (IOException | JSONException e) {
+            // 队列文件损坏时丢弃，断点日志仍可通过 pendingTransfers 找回
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 单个传输任务
+     */
+    private static class Job {
+        String id;
+        String direction;
+        String source;
+        String destination;
+        int threads;
+        int chunkSize;
+        int priority;
+        long sequence;
+        volatile String state;
+        String error;
+        volatile long transferred;
+        volatile long total;
+
+        // 以下不持久化
+        volatile boolean abort;
+        // 从队列文件恢复，认证后才执行
+        boolean restored;
+        List<CallbackContext> callbacks = new ArrayList<CallbackContext>();
+
+        /**
+         * 远程路径，用于区分主机和获取会话
+         */
+        String remotePath() {
+            return TransferJournal.DOWNLOAD.equals(direction) ? source : destination;
+        }
+
+        String host() {
+            String path = remotePath();
+            int start = path.indexOf("://");
+            start = start < 0 ? 0 : start + 3;
+            int end = path.indexOf('/', start);
+            return (end < 0 ? path.substring(start) : path.substring(start, end)).toLowerCase();
+        }
+
+        synchronized void await(CallbackContext callback) {
+            callbacks.add(callback);
+        }
+
+        void finish(PluginResult result) {
+            List<CallbackContext> list;
+            synchronized (this) {
+                list = new ArrayList<CallbackContext>(callbacks);
+                callbacks.clear();
+            }
+            for (CallbackContext callback : list) {
+                callback.sendPluginResult(result);
+            }
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("direction", direction);
+            json.put("source", source);
+            json.put("destination", destination);
+            json.put("threads", threads);
+            json.put("chunkSize", chunkSize);
+            json.put("priority", priority);
+            json.put("state", state);
+            json.put("transferred", transferred);
+            json.put("total", total);
+            if (error != null) json.put("error", error);
+            return json;
+        }
+
+        static Job fromJSON(JSONObject json) throws JSONException {
+            Job job = new Job();
+            job.id = json.getString("id");
+            job.direction = json.getString("direction");
+            job.source = json.getString("source");
+            job.destination = json.getString("destination");
+            job.threads = json.optInt("threads", 1);
+            job.chunkSize = json.optInt("chunkSize");
+            job.priority = json.optInt("priority");
+            job.state = json.getString("state");
+            job.transferred = json.optLong("transferred");
+            job.total = json.optLong("total");
+            job.error = json.optString("error", null);
+            return job;
+        }
+    }
+
+}
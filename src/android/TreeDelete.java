@@ -0,0 +1,198 @@
+/**
+ * Tree Delete
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import jcifs.smb.SmbFile;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 目录递归删除
+ * 遍历线程并发列出子目录，文件交给删除线程并发删除；每个目录记录尚未删除的子项数，
+ * 归零后才删除目录本身，因此目录总是自底向上删除。取消或某个子项删除失败时，
+ * 其所在目录及上级目录都会保留，剩余部分仍是完整的目录树
+ */
+class TreeDelete extends TreeTask {
+
+    private String id;
+    private ProgressChannel progressChannel;
+    private ProgressChannel.Tracker tracker;
+
+    private AtomicLong totalEntries = new AtomicLong();
+    private AtomicLong deletedEntries = new AtomicLong();
+    private AtomicLong totalFiles = new AtomicLong();
+    private AtomicLong deletedFiles = new AtomicLong();
+    private AtomicLong deletedDirectories = new AtomicLong();
+
+    /**
+     * @param String id 任务编号
+     * @param int walkers 遍历线程数
+     * @param int workers 删除线程数
+     * @param SessionPool sessionPool
+     * @param ProgressChannel progressChannel
+     */
+    public TreeDelete(String id, int walkers, int workers, SessionPool sessionPool,
+        ProgressChannel progressChannel) {
+
+        super(walkers, workers, sessionPool);
+        this.id = id;
+        this.progressChannel = progressChannel;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * 删除目录及其全部内容，返回前所有删除步骤都已结束
+     * @param String path 目录路径（以 / 结尾）
+     * @return JSONObject { id, files, directories, failures: [{ path, error }] }
+     * @throws InterruptedIOException 删除被取消
+     */
+    public JSONObject run(String path) throws IOException, JSONException {
+        tracker = progressChannel.track(id, path);
+        discovered(false);
+        try {
+            walk(path, listStep(new Node(new SambaFile(path), null)));
+            await();
+        } finally {
+            ListingCache.remove(path);
+        }
+        tracker.finish();
+        report();
+
+        JSONObject result = new JSONObject();
+        result.put("id", id);
+        result.put("files", deletedFiles.get());
+        result.put("directories", deletedDirectories.get());
+        result.put("failures", failures());
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 列出目录：子目录继续遍历，文件交给删除线程
+     */
+    private Step listStep(Node node) {
+        return new Step() {
+            @Override
+            public void run() throws Exception {
+                SmbFile[] children = node.dir.listFiles();
+                // 先计入全部子项，避免部分子项删除后目录被提前删除
+                node.remaining.addAndGet(children.length);
+                for (SmbFile child : children) {
+                    checkCancelled();
+                    if (child.isDirectory()) {
+                        discovered(false);
+                        walk(child.getPath(), listStep(new Node(child, node)));
+                    } else {
+                        discovered(true);
+                        work(child.getPath(), deleteFileStep(child, node));
+                    }
+                }
+                // 列表本身占用的计数
+                childDeleted(node);
+            }
+        };
+    }
+
+    private Step deleteFileStep(SmbFile file, Node parent) {
+        return new Step() {
+            @Override
+            public void run() throws Exception {
+                checkCancelled();
+                file.delete();
+                deletedFiles.incrementAndGet();
+                deletedEntries.incrementAndGet();
+                report();
+                childDeleted(parent);
+            }
+        };
+    }
+
+    private Step deleteDirectoryStep(Node node) {
+        return new Step() {
+            @Override
+            public void run() throws Exception {
+                checkCancelled();
+                node.dir.delete();
+                deletedDirectories.incrementAndGet();
+                deletedEntries.incrementAndGet();
+                report();
+                if (node.parent != null) childDeleted(node.parent);
+            }
+        };
+    }
+
+    /**
+     * 子项删除后计数减一，目录已空时删除目录本身
+     */
+    private void childDeleted(Node node) {
+        if (node.remaining.decrementAndGet() == 0) {
+            work(node.dir.getPath(), deleteDirectoryStep(node));
+        }
+    }
+
+    private void discovered(boolean file) {
+        totalEntries.incrementAndGet();
+        if (file) totalFiles.incrementAndGet();
+    }
+
+    private void report() {
+        synchronized (tracker) {
+            tracker.setFiles(deletedFiles.get(), totalFiles.get());
+            tracker.onProgress(deletedEntries.get(), totalEntries.get());
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 待删除的目录
+     */
+    private static class Node {
+        final SmbFile dir;
+        final Node parent;
+        // 尚未删除的子项数，初始 1 表示目录尚未列出
+        final AtomicInteger remaining = new AtomicInteger(1);
+
+        Node(SmbFile dir, Node parent) {
+            this.dir = dir;
+            this.parent = parent;
+        }
+    }
+
+}
@@ -0,0 +1,324 @@
+/**
+ * Tree Task
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 目录树批量任务
+ * 遍历线程并发列出各个子目录，发现的文件立即交给处理线程，两个阶段同时进行。
+ * 处理步骤可以交给外部线程池（如插件的批量通道），同时提交的步骤不超过处理并发数，
+ * 其余在任务内排队。所有步骤结束（或被取消）后 await() 返回；
+ * 单个步骤失败只记录，不影响其余步骤
+ */
+abstract class TreeTask {
+
+    private ExecutorService walkPool;
+    private ExecutorService ownWorkPool;
+    private Executor workPool;
+    private int workers;
+    private SessionPool sessionPool;
+
+    // 等待提交到处理线程池的步骤，及已提交未结束的步骤数
+    private Queue<WorkTask> backlog = new ArrayDeque<WorkTask>();
+    private int running;
+
+    private AtomicInteger pending = new AtomicInteger();
+    private CountDownLatch done = new CountDownLatch(1);
+    private List<JSONObject> failures = new ArrayList<JSONObject>();
+    private volatile boolean cancelled;
+
+    /**
+     * 处理步骤使用任务自己的线程池
+     * @param int walkers 遍历线程数
+     * @param int workers 处理线程数
+     * @param SessionPool sessionPool 访问 SMB 的步骤从中获取会话使用权
+     */
+    public TreeTask(int walkers, int workers, SessionPool sessionPool) {
+        this(walkers, workers, sessionPool, null);
+    }
+
+    /**
+     * @param int walkers 遍历线程数
+     * @param int workers 同时处理的步骤数
+     * @param SessionPool sessionPool 访问 SMB 的步骤从中获取会话使用权
+     * @param Executor workPool 处理步骤的线程池，为 null 时创建 workers 个线程
+     */
+    public TreeTask(int walkers, int workers, SessionPool sessionPool, Executor workPool) {
+        this.walkPool = Executors.newFixedThreadPool(Math.max(walkers, 1));
+        this.workers = Math.max(workers, 1);
+        if (workPool == null) {
+            this.ownWorkPool = Executors.newFixedThreadPool(this.workers);
+            workPool = ownWorkPool;
+        }
+        this.workPool = workPool;
+        this.sessionPool = sessionPool;
+    }
+
+    /**
+     * 任务编号
+     * @return String
+     */
+    public abstract String getId();
+
+    /**
+     * 取消任务，已开始的步骤在下一次检查时中止，未开始的不再执行
+     */
+    public void cancel() {
+        cancelled = true;
+        done.countDown();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 失败的步骤
+     * @return JSONArray [{ path, error }]
+     */
+    public JSONArray failures() {
+        synchronized (failures) {
+            return new JSONArray(failures);
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 子类使用
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 提交遍历步骤
+     * @param String path 步骤处理的路径，SMB 路径会先获取会话使用权
+     * @param Step step
+     */
+    protected void walk(String path, Step step) {
+        submit(false, path, true, step);
+    }
+
+    /**
+     * 提交处理步骤
+     * @param String path 步骤处理的路径，SMB 路径会先获取会话使用权
+     * @param Step step
+     */
+    protected void work(String path, Step step) {
+        submit(true, path, true, step);
+    }
+
+    /**
+     * 提交传输步骤
+     * 传输时 SambaFile 在每次读写期间获取会话使用权，步骤本身不持有，避免长时间占用
+     * @param String path 步骤处理的路径
+     * @param Step step
+     */
+    protected void transfer(String path, Step step) {
+        submit(true, path, false, step);
+    }
+
+    /**
+     * 等待所有步骤结束
+     * @throws InterruptedIOException 任务被取消
+     */
+    protected void await() throws IOException {
+        try {
+            // 没有提交任何步骤时直接结束
+            if (pending.get() == 0) done.countDown();
+            done.await();
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+        } finally {
+            walkPool.shutdownNow();
+            if (ownWorkPool != null) ownWorkPool.shutdownNow();
+            synchronized (backlog) {
+                backlog.clear();
+            }
+        }
+        if (cancelled) {
+            // 等待已开始的步骤退出，避免返回后仍有写入
+            try {
+                walkPool.awaitTermination(10, TimeUnit.SECONDS);
+                awaitRunning(10 * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new InterruptedIOException("Operation cancelled");
+        }
+    }
+
+    /**
+     * 已取消时抛出异常，供长时间运行的步骤检查
+     */
+    protected void checkCancelled() throws InterruptedIOException {
+        if (cancelled) throw new InterruptedIOException("Operation cancelled");
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private void submit(boolean work, String path, boolean leased, Step step) {
+        if (cancelled) return;
+        pending.incrementAndGet();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                SessionPool.Lease lease = null;
+                try {
+                    if (cancelled) return;
+                    if (leased && path.startsWith("smb://")) lease = sessionPool.acquire(path);
+                    step.run();
+                } catch (Exception e) {
+                    if (!cancelled) fail(path, e);
+                } finally {
+                    if (lease != null) lease.release();
+                    if (pending.decrementAndGet() == 0) done.countDown();
+                }
+            }
+        };
+        if (work) {
+            synchronized (backlog) {
+                backlog.add(new WorkTask(path, task));
+            }
+            dispatch();
+            return;
+        }
+        try {
+            walkPool.execute(task);
+        } catch (RuntimeException e) {
+            // 线程池已关闭（任务已取消）
+            if (pending.decrementAndGet() == 0) done.countDown();
+        }
+    }
+
+    /**
+     * 在并发数以内，把排队的处理步骤提交到处理线程池
+     */
+    private void dispatch() {
+        while (true) {
+            WorkTask task;
+            synchronized (backlog) {
+                if (running >= workers || (task = backlog.poll()) == null) return;
+                running++;
+            }
+            try {
+                workPool.execute(task);
+            } catch (RuntimeException e) {
+                // 线程池已关闭或队列已满：该步骤记为失败
+                finished();
+                if (!cancelled) fail(task.path, e);
+                if (pending.decrementAndGet() == 0) done.countDown();
+            }
+        }
+    }
+
+    private void finished() {
+        synchronized (backlog) {
+            running--;
+            backlog.notifyAll();
+        }
+    }
+
+    /**
+     * 等待已提交到处理线程池的步骤结束
+     */
+    private void awaitRunning(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (backlog) {
+            long wait;
+            while (running > 0 && (wait = deadline - System.currentTimeMillis()) > 0) {
+                backlog.wait(wait);
+            }
+        }
+    }
+
+    private void fail(String path, Exception e) {
+        JSONObject failure = new JSONObject();
+        try {
+            failure.put("path", path);
+            failure.put("error", String.valueOf(e.getMessage()));
+        } catch (JSONException ignored) {
+            // 键值均非空，不会发生
+        }
+        synchronized (failures) {
+            failures.add(failure);
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 已进入处理线程池的步骤，结束后提交下一个排队的步骤
+     */
+    private class WorkTask implements Runnable {
+
+        final String path;
+        final Runnable task;
+
+        WorkTask(String path, Runnable task) {
+            this.path = path;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                finished();
+                dispatch();
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 公共接口
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 单个步骤
+     */
+    protected interface Step {
+        public void run() throws Exception;
+    }
+
+}
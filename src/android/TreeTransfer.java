@@ -0,0 +1,251 @@
+/**
+ * Tree Transfer
+ * Copyright (c) 2019, CLOUDSEAT Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <https://www.gnu.org/licenses>.
+ *
+ * @author AiChen
+ * @copyright (c) 2019, CLOUDSEAT Inc.
+ * @license https://www.gnu.org/licenses
+ * @link https://www.cloudseat.net
+ */
+
+package net.cloudseat.smbova;
+
+import jcifs.smb.SmbFile;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 目录递归上传下载
+ * 遍历线程并发列出子目录并创建对应的目标目录，发现的文件立即交给传输线程，
+ * 遍历与传输同时进行。进度按总字节数和文件数合并推送，总量随遍历逐步增长
+ */
+class TreeTransfer extends TreeTask {
+
+    private String id;
+    private String direction;
+    private boolean skipExisting;
+    private ProgressChannel progressChannel;
+    private ProgressChannel.Tracker tracker;
+
+    private AtomicLong totalBytes = new AtomicLong();
+    private AtomicLong transferredBytes = new AtomicLong();
+    private AtomicLong totalFiles = new AtomicLong();
+    private AtomicLong finishedFiles = new AtomicLong();
+    private AtomicLong skippedFiles = new AtomicLong();
+    private List<String> downloaded = new ArrayList<String>();
+
+    /**
+     * @param String id 传输编号
+     * @param String direction TransferJournal.DOWNLOAD 或 TransferJournal.UPLOAD
+     * @param int walkers 遍历线程数
+     * @param int transfers 同时传输的文件数
+     * @param boolean skipExisting 目标已存在且大小相同的文件不再传输
+     * @param SessionPool sessionPool
+     * @param Executor transferPool 执行文件传输的线程池
+     * @param ProgressChannel progressChannel
+     */
+    public TreeTransfer(String id, String direction, int walkers, int transfers, boolean skipExisting,
+        SessionPool sessionPool, Executor transferPool, ProgressChannel progressChannel) {
+
+        super(walkers, transfers, sessionPool, transferPool);
+        this.id = id;
+        this.direction = direction;
+        this.skipExisting = skipExisting;
+        this.progressChannel = progressChannel;
+    }
+
+    /**
+     * 执行传输，返回前所有文件都已结束
+     * @param String source 源目录（以 / 结尾）
+     * @param String destination 目标目录（以 / 结尾）
+     * @return JSONObject { id, files, skipped, bytes, failures: [{ path, error }] }
+     * @throws InterruptedIOException 传输被取消
+     */
+    public JSONObject run(String source, String destination) throws IOException, JSONException {
+        tracker = progressChannel.track(id, source);
+        if (TransferJournal.DOWNLOAD.equals(direction)) {
+            walkRemote(new SambaFile(source), new File(destination));
+        } else {
+            walkLocal(new File(source), destination);
+        }
+        await();
+        tracker.finish();
+        report();
+
+        JSONObject result = new JSONObject();
+        result.put("id", id);
+        result.put("files", finishedFiles.get());
+        result.put("skipped", skippedFiles.get());
+        result.put("bytes", transferredBytes.get());
+        result.put("failures", failures());
+        return result;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * 已下载到本地的文件路径（用于更新系统相册）
+     * @return String[]
+     */
+    public String[] getDownloaded() {
+        synchronized (downloaded) {
+            return downloaded.toArray(new String[downloaded.size()]);
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 列出远程目录：子目录继续遍历，文件交给传输线程
+     */
+    private void walkRemote(SambaFile dir, File localDir) {
+        walk(dir.getPath(), new Step() {
+            @Override
+            public void run() throws Exception {
+                if (!localDir.isDirectory() && !localDir.mkdirs()) {
+                    throw new IOException("Cannot create directory: " + localDir);
+                }
+                // 枚举结果自带属性，isDirectory() 和 length() 不再发起请求
+                for (SmbFile child : dir.listFiles()) {
+                    checkCancelled();
+                    String name = child.getName();
+                    if (child.isDirectory()) {
+                        walkRemote(new SambaFile(child.getPath()),
+                            new File(localDir, name.substring(0, name.length() - 1)));
+                    } else {
+                        download(child.getPath(), child.length(), new File(localDir, name));
+                    }
+                }
+            }
+        });
+    }
+
+    private void download(String smbPath, long size, File localFile) {
+        discovered(size);
+        if (skipExisting && localFile.isFile() && localFile.length() == size) {
+            skipped(size);
+            return;
+        }
+        transfer(smbPath, new Step() {
+            @Override
+            public void run() throws Exception {
+                new SambaFile(smbPath).download(localFile.getPath(), listener());
+                synchronized (downloaded) {
+                    downloaded.add(localFile.getPath());
+                }
+                finishedFiles.incrementAndGet();
+                report();
+            }
+        });
+    }
+
+    /**
+     * 列出本地目录：创建对应的远程目录后，子目录继续遍历，文件交给传输线程
+     */
+    private void walkLocal(File dir, String smbDir) {
+        walk(smbDir, new Step() {
+            @Override
+            public void run() throws Exception {
+                SambaFile remoteDir = new SambaFile(smbDir);
+                if (!remoteDir.exists()) {
+                    remoteDir.mkdirs();
+                    // 上级目录多了一项，其缓存的列表已过期；上级目录本身在更上一级的条目不变
+                    ListingCache.invalidate(remoteDir.getParent());
+                }
+
+                File[] children = dir.listFiles();
+                if (children == null) throw new IOException("Cannot list directory: " + dir);
+                for (File child : children) {
+                    checkCancelled();
+                    if (child.isDirectory()) {
+                        walkLocal(child, smbDir + child.getName() + "/");
+                    } else {
+                        upload(child, smbDir + child.getName());
+                    }
+                }
+            }
+        });
+    }
+
+    private void upload(File localFile, String smbPath) {
+        long size = localFile.length();
+        discovered(size);
+        transfer(smbPath, new Step() {
+            @Override
+            public void run() throws Exception {
+                SambaFile remoteFile = new SambaFile(smbPath);
+                if (skipExisting && remoteFile.isFile() && remoteFile.length() == size) {
+                    skipped(size);
+                    return;
+                }
+                remoteFile.upload(localFile.getPath(), listener());
+                finishedFiles.incrementAndGet();
+                report();
+            }
+        });
+    }
+
+    private void discovered(long size) {
+        totalFiles.incrementAndGet();
+        totalBytes.addAndGet(size);
+    }
+
+    private void skipped(long size) {
+        skippedFiles.incrementAndGet();
+        finishedFiles.incrementAndGet();
+        transferredBytes.addAndGet(size);
+        report();
+    }
+
+    /**
+     * 单个文件的进度监听，将增量累加到总进度
+     */
+    private SambaFile.OnProgressListener listener() {
+        return new SambaFile.OnProgressListener() {
+            private long last;
+
+            @Override
+            public void onProgress(long transferred, long total) throws IOException {
+                checkCancelled();
+                transferredBytes.addAndGet(transferred - last);
+                last = transferred;
+                report();
+            }
+        };
+    }
+
+    private void report() {
+        synchronized (tracker) {
+            tracker.setFiles(finishedFiles.get(), totalFiles.get());
+            tracker.onProgress(transferredBytes.get(), totalBytes.get());
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package net.cloudseat.smbova;
+
+import android.graphics.Bitmap;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 位图复用池
+ * 不再使用的可变位图按占用字节数分桶保存，解码新图像时通过 inBitmap 复用，
+ * 减少大块内存分配和 GC 停顿。超过最大字节数时丢弃最早放入的位图
+ */
+public class BitmapPool {
+
+    // 复用的位图最多比所需大一倍，避免小图占用大块内存
+    private static final int MAX_WASTE_FACTOR = 2;
+
+    private long maxSize;
+    private long size;
+
+    // 占用字节数 -> 位图
+    private TreeMap<Integer, LinkedList<Bitmap>> buckets = new TreeMap<Integer, LinkedList<Bitmap>>();
+    // 放入顺序，用于淘汰
+    private LinkedList<Bitmap> order = new LinkedList<Bitmap>();
+
+    /**
+     * @param maxSize 最大字节数
+     */
+    public BitmapPool(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 取出一个可容纳指定尺寸 ARGB_8888 图像的位图
+     * @param width
+     * @param height
+     * @return 没有合适的位图时返回 null
+     */
+    public synchronized Bitmap get(int width, int height) {
+        int needed = width * height * 4;
+        Map.Entry<Integer, LinkedList<Bitmap>> entry = buckets.ceilingEntry(needed);
+        if (entry == null || entry.getKey() > (long) needed * MAX_WASTE_FACTOR) return null;
+
+        Bitmap bitmap = entry.getValue().removeLast();
+        if (entry.getValue().isEmpty()) buckets.remove(entry.getKey());
+        order.remove(bitmap);
+        size -= entry.getKey();
+        return bitmap;
+    }
+
+    /**
+     * 放入不再显示的位图，不可变或已回收的位图直接丢弃
+     * @param bitmap
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) return;
+        int bytes = bitmap.getAllocationByteCount();
+        if (bytes > maxSize) return;
+
+        LinkedList<Bitmap> bucket = buckets.get(bytes);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            buckets.put(bytes, bucket);
+        }
+        bucket.add(bitmap);
+        order.add(bitmap);
+        size += bytes;
+
+        while (size > maxSize) {
+            Bitmap eldest = order.removeFirst();
+            int eldestBytes = eldest.getAllocationByteCount();
+            LinkedList<Bitmap> eldestBucket = buckets.get(eldestBytes);
+            eldestBucket.remove(eldest);
+            if (eldestBucket.isEmpty()) buckets.remove(eldestBytes);
+            size -= eldestBytes;
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 
 import android.view.LayoutInflater;
 import android.view.View;
@@ -13,6 +14,7 @@ import android.widget.ProgressBar;
 import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewPager;
 
+import java.io.File;
 import java.util.LinkedList;
 import net.cloudseat.smbova.R;
 
@@ -23,6 +25,8 @@ public class GalleryActivity extends Activity {
 
     // ViewPager Item 页面缓存
     private LinkedList<View> itemViewCache = new LinkedList<View>();
+    // 相邻图像预加载
+    private GalleryPrefetcher prefetcher;
 
     /**
      * 覆盖父类创建方法
@@ -33,10 +37,40 @@ public class GalleryActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.gallery_viewer);
 
+        // 按屏幕尺寸降采样解码
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        GallerySource.setTargetSize(metrics.widthPixels, metrics.heightPixels);
+
         ViewPager viewPager = (ViewPager) findViewById(R.id.view_pager);
         viewPager.setPageMargin(50);
         viewPager.setAdapter(new GalleryAdapter());
         viewPager.setCurrentItem(gallerySource.currentIndex());
+
+        // 翻页后重新预加载前后的图像
+        prefetcher = new GalleryPrefetcher(gallerySource);
+        prefetcher.select(gallerySource.currentIndex());
+        viewPager.addOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+            @Override
+            public void onPageSelected(int position) {
+                prefetcher.select(position);
+            }
+        });
+    }
+
+    /**
+     * 覆盖父类销毁方法，释放仍在显示的图像
+     */
+    @Override
+    protected void onDestroy() {
+        prefetcher.cancelAll();
+        ViewPager viewPager = (ViewPager) findViewById(R.id.view_pager);
+        for (int i = 0; i < viewPager.getChildCount(); i++) {
+            ((ItemHolder) viewPager.getChildAt(i).getTag()).clear();
+        }
+        for (View itemView : itemViewCache) {
+            ((ItemHolder) itemView.getTag()).clear();
+        }
+        super.onDestroy();
     }
 
     ///////////////////////////////////////////////////////
@@ -72,21 +106,32 @@ public class GalleryActivity extends Activity {
                 // 从 xml 获取 item 布局
                 LayoutInflater inflater = (LayoutInflater) container.getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
                 itemView = inflater.inflate(R.layout.gallery_item, null);
+                itemView.setTag(new ItemHolder(itemView));
             }
 
             // 获取 item 布局中的控件并初始化
-            ProgressBar loading = (ProgressBar) itemView.findViewById(R.id.loading);
-            PinchImageView imageView = (PinchImageView) itemView.findViewById(R.id.image_view);
-            imageView.setImageBitmap(null);
-            imageView.reset();
-            loading.setVisibility(View.VISIBLE);
+            ItemHolder holder = (ItemHolder) itemView.getTag();
+            holder.bind(position);
 
             // 加载图像
-            gallerySource.load(position, new GallerySource.OnImageLoadedListener() {
+            holder.request = gallerySource.load(position, new GallerySource.OnImageLoadedListener() {
                 @Override
                 public void onImageLoaded(Bitmap bitmap) {
-                    imageView.setImageBitmap(bitmap);
-                    loading.setVisibility(View.INVISIBLE);
+                    // 加载期间页面已被回收
+                    if (holder.position != position) {
+                        GallerySource.release(bitmap);
+                        return;
+                    }
+                    // 加载失败时保留已显示的预览
+                    if (bitmap != null) holder.setBitmap(bitmap);
+                    holder.loading.setVisibility(View.INVISIBLE);
+                }
+            }, new GallerySource.OnImageLoadedListener() {
+                @Override
+                public void onImageLoaded(Bitmap preview) {
+                    // 先放大显示内嵌缩略图，完整图像到达后替换
+                    if (holder.position != position || holder.bitmap != null) return;
+                    holder.imageView.setImageBitmap(preview);
                 }
             });
 
@@ -101,8 +146,105 @@ public class GalleryActivity extends Activity {
         public void destroyItem(ViewGroup container, int position, Object object) {
             View item = (View) object;
             container.removeView(item);
+            ((ItemHolder) item.getTag()).clear();
             itemViewCache.add(item);
         }
     }
 
+    /**
+     * 页面控件和状态
+     * 放大超过屏幕分辨率（原图像素被放大显示）时加载一次全分辨率图像
+     */
+    private class ItemHolder implements PinchImageView.OuterMatrixChangedListener {
+
+        ProgressBar loading;
+        PinchImageView imageView;
+        // 当前显示的图像索引，-1 表示页面已回收
+        int position = -1;
+        // 当前显示的位图，不再显示时释放
+        Bitmap bitmap;
+        boolean fullRequested;
+        // 进行中的加载，页面回收时取消
+        GallerySource.Cancellable request;
+        // 超大图像的分块渲染器
+        TileRenderer tileRenderer;
+
+        ItemHolder(View itemView) {
+            loading = (ProgressBar) itemView.findViewById(R.id.loading);
+            imageView = (PinchImageView) itemView.findViewById(R.id.image_view);
+            imageView.addOuterMatrixChangedListener(this);
+        }
+
+        void bind(int position) {
+            clear();
+            this.position = position;
+            loading.setVisibility(View.VISIBLE);
+        }
+
+        void setBitmap(Bitmap bitmap) {
+            Bitmap old = this.bitmap;
+            this.bitmap = bitmap;
+            imageView.setImageBitmap(bitmap);
+            GallerySource.release(old);
+        }
+
+        void clear() {
+            if (request != null) {
+                request.cancel();
+                request = null;
+            }
+            if (tileRenderer != null) {
+                imageView.setTileRenderer(null);
+                tileRenderer.release();
+                tileRenderer = null;
+            }
+            position = -1;
+            fullRequested = false;
+            setBitmap(null);
+            imageView.reset();
+        }
+
+        @Override
+        public void onOuterMatrixChanged(PinchImageView pinchImageView) {
+            if (fullRequested || bitmap == null || imageView.getCurrentScale() <= 1f) return;
+            fullRequested = true;
+            final int requested = position;
+            if (gallerySource.isLarge(requested)) {
+                // 超大图像：在底图上方按可见区域分块解码本地缓存文件
+                request = gallerySource.loadFile(requested, new GallerySource.OnFileLoadedListener() {
+                    @Override
+                    public void onFileLoaded(File file) {
+                        if (position != requested) return;
+                        if (file == null) {
+                            // 无法缓存到本地（如磁盘缓存已关闭或写入失败）：改为解码整张图
+                            loadFull(requested);
+                            return;
+                        }
+                        tileRenderer = new TileRenderer(file, imageView);
+                        imageView.setTileRenderer(tileRenderer);
+                    }
+                });
+                return;
+            }
+            loadFull(requested);
+        }
+
+        /**
+         * 加载全尺寸图像，替换当前显示的屏幕尺寸图像
+         */
+        private void loadFull(final int requested) {
+            request = gallerySource.loadFull(requested, new GallerySource.OnImageLoadedListener() {
+                @Override
+                public void onImageLoaded(Bitmap full) {
+                    if (position != requested || full == null) {
+                        GallerySource.release(full);
+                        return;
+                    }
+                    // 宽高比不变，替换后外部矩阵仍对应同一显示区域
+                    setBitmap(full);
+                }
+            });
+        }
+    }
+
 }
@@ -0,0 +1,174 @@
+package net.cloudseat.smbova;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 图片加载线程池
+ * 读取阶段（网络和磁盘 IO）和解码阶段（CPU）分别使用独立的线程池，
+ * 读取完成后交给有界的解码队列，解码队列已满时读取线程等待。
+ * 两个队列都是后进先出，最近请求的图像（通常是正在查看的页面）优先处理
+ */
+public class GalleryExecutor {
+
+    public static final int DEFAULT_IO_THREADS = 3;
+    public static final int DEFAULT_DECODE_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // 每个解码线程允许排队的任务数
+    private static final int DECODE_QUEUE_PER_THREAD = 2;
+
+    private static ThreadPoolExecutor io = create("gallery-io", DEFAULT_IO_THREADS, Integer.MAX_VALUE);
+    private static ThreadPoolExecutor decode = create("gallery-decode", DEFAULT_DECODE_THREADS,
+        DEFAULT_DECODE_THREADS * DECODE_QUEUE_PER_THREAD);
+    private static Handler main = new Handler(Looper.getMainLooper());
+
+    static {
+        // 解码队列已满时阻塞提交的读取线程，直到有空位
+        decode.setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                try {
+                    executor.getQueue().put(task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * 设置读取和解码的线程数
+     * 解码队列长度在创建时确定，不随线程数变化
+     * @param int ioThreads
+     * @param int decodeThreads
+     */
+    public static synchronized void setThreads(int ioThreads, int decodeThreads) {
+        resize(io, ioThreads);
+        resize(decode, decodeThreads);
+    }
+
+    /**
+     * 当前读取线程数
+     * @return int
+     */
+    public static synchronized int getIoThreads() {
+        return io.getCorePoolSize();
+    }
+
+    /**
+     * 当前解码线程数
+     * @return int
+     */
+    public static synchronized int getDecodeThreads() {
+        return decode.getCorePoolSize();
+    }
+
+    /**
+     * 在读取线程池执行
+     * @param Runnable task
+     */
+    public static void io(Runnable task) {
+        io.execute(task);
+    }
+
+    /**
+     * 在解码线程池执行，队列已满时等待
+     * @param Runnable task
+     */
+    public static void decode(Runnable task) {
+        decode.execute(task);
+    }
+
+    /**
+     * 在主线程执行
+     * @param Runnable task
+     */
+    public static void post(Runnable task) {
+        main.post(task);
+    }
+
+    /**
+     * 将排队中的读取任务移到队首
+     * @param Runnable task
+     */
+    public static void promote(Runnable task) {
+        if (io.remove(task)) io.execute(task);
+    }
+
+    /**
+     * 移除排队中的读取任务
+     * @param Runnable task
+     */
+    public static void remove(Runnable task) {
+        io.remove(task);
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private static ThreadPoolExecutor create(String name, int threads, int capacity) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new LifoQueue(capacity), new ThreadFactory() {
+                private AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+        return executor;
+    }
+
+    private static void resize(ThreadPoolExecutor executor, int threads) {
+        threads = Math.max(threads, 1);
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 后进先出队列：新任务放在队首
+     */
+    private static class LifoQueue extends LinkedBlockingDeque<Runnable> {
+
+        private static final long serialVersionUID = 1L;
+
+        LifoQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public boolean offer(Runnable task) {
+            return offerFirst(task);
+        }
+
+        @Override
+        public void put(Runnable task) throws InterruptedException {
+            putFirst(task);
+        }
+
+        @Override
+        public boolean add(Runnable task) {
+            addFirst(task);
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package net.cloudseat.smbova;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 相邻图像预加载
+ * 预先加载当前图像前后各 N 张到内存缓存，按滑动方向优先加载前方的图像；
+ * 翻页后取消已超出范围、仍在进行中的加载。只在主线程调用
+ */
+public class GalleryPrefetcher {
+
+    public static final int DEFAULT_DISTANCE = 2;
+
+    // 前后预加载的图像数，0 表示不预加载
+    private static int distance = DEFAULT_DISTANCE;
+
+    private GallerySource source;
+    private int current = -1;
+    // 图像索引 -> 进行中的加载
+    private Map<Integer, GallerySource.Cancellable> pending = new HashMap<Integer, GallerySource.Cancellable>();
+
+    public GalleryPrefetcher(GallerySource source) {
+        this.source = source;
+    }
+
+    /**
+     * 设置前后预加载的图像数
+     * @param int n
+     */
+    public static synchronized void setDistance(int n) {
+        distance = Math.max(n, 0);
+    }
+
+    private static synchronized int getDistance() {
+        return distance;
+    }
+
+    /**
+     * 切换到指定图像，重新计算预加载范围
+     * @param int index 当前图像索引
+     */
+    public void select(int index) {
+        boolean forward = index >= current;
+        current = index;
+        int n = getDistance();
+
+        // 取消超出范围的加载
+        Iterator<Map.Entry<Integer, GallerySource.Cancellable>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, GallerySource.Cancellable> entry = iterator.next();
+            if (Math.abs(entry.getKey() - index) > n) {
+                entry.getValue().cancel();
+                iterator.remove();
+            }
+        }
+
+        // 由近及远，同一距离先加载滑动方向前方的图像
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 1; i <= n; i++) {
+            order.add(forward ? index + i : index - i);
+            order.add(forward ? index - i : index + i);
+        }
+        for (int i : order) {
+            if (i < 0 || i >= source.size() || pending.containsKey(i)) continue;
+            prefetch(i);
+        }
+    }
+
+    /**
+     * 取消全部预加载
+     */
+    public void cancelAll() {
+        for (GallerySource.Cancellable request : pending.values()) {
+            request.cancel();
+        }
+        pending.clear();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private void prefetch(int index) {
+        GallerySource.Cancellable request = source.prefetch(index, new GallerySource.OnImageLoadedListener() {
+            @Override
+            public void onImageLoaded(Bitmap bitmap) {
+                pending.remove(index);
+                // 只需留在内存缓存中，不显示
+                GallerySource.release(bitmap);
+            }
+        });
+        if (request != null) pending.put(index, request);
+    }
+
+}
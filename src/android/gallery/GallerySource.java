@@ -2,10 +2,30 @@ package net.cloudseat.smbova;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.LruCache;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public abstract class GallerySource {
 
@@ -21,11 +41,39 @@ public abstract class GallerySource {
     // 图片数据
     protected abstract byte[] data(int index) throws IOException;
 
+    // 图片版本（如文件大小和修改时间），与键值共同组成磁盘缓存键，文件改变后不再命中旧缓存
+    // 在子线程调用，默认不区分版本
+    protected String version(int index) throws IOException {
+        return "";
+    }
+
+    // 图片数据流，解码从文件头开始，与读取同时进行，同时写入磁盘缓存，无需先把整个文件读入内存
+    // 在子线程调用，默认返回 null，改为读取 data()
+    protected InputStream stream(int index) throws IOException {
+        return null;
+    }
+
+    // 解析文件头时允许回退的字节数，需覆盖 EXIF 等 APPn 段和尺寸信息
+    private static final int HEADER_LIMIT = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // 读取与解码之间的管道容量：解码线程尚未开始时，读取线程仍能读完文件头并显示预览
+    private static final int PIPE_SIZE = HEADER_LIMIT;
+
     /**
      * 图像内存缓存
      * 使用静态代码块防止重复创建
      */
     private static LruCache<String, Bitmap> imageCache;
+    // 淘汰后可复用的位图
+    private static BitmapPool bitmapPool;
+    // 正在显示的位图 -> 引用数，显示中的位图不能放入复用池
+    private static Map<Bitmap, Integer> references = new IdentityHashMap<Bitmap, Integer>();
+    // 已被内存缓存淘汰、待释放后放入复用池的位图
+    private static Set<Bitmap> orphans = new HashSet<Bitmap>();
+    // 以降采样解码的图像键值，放大时需加载全分辨率
+    private static Set<String> subsampled = new HashSet<String>();
+    // 超出全分辨率解码限制的图像键值，放大时改为分块渲染
+    private static Set<String> large = new HashSet<String>();
     static {
         // 应用程序最大可用内存
         final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
@@ -37,20 +85,439 @@ public abstract class GallerySource {
             protected int sizeOf(String key, Bitmap bitmap) {
                 return bitmap.getByteCount() / 1024;
             }
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                recycle(oldValue);
+            }
         };
+        // 将最大可用内存的 1/10 作为复用池
+        bitmapPool = new BitmapPool(maxMemory / 10 * 1024L);
+    }
+
+    /**
+     * 解码目标尺寸（通常为屏幕尺寸），0 表示不降采样
+     */
+    private static int targetWidth;
+    private static int targetHeight;
+    // 全分辨率解码时长边最大像素，超出部分仍降采样以免超出画布限制
+    private static final int MAX_FULL_SIZE = 4096;
+
+    /**
+     * 设置解码目标尺寸
+     * 图像以 2 的幂降采样到不小于该尺寸，放大查看时再加载全分辨率
+     * @param int width
+     * @param int height
+     */
+    public static synchronized void setTargetSize(int width, int height) {
+        targetWidth = width;
+        targetHeight = height;
     }
 
     /**
-     * 根据索引加载图像
+     * 图像磁盘缓存（原始编码数据）
+     * 进程重启或内存缓存淘汰后无需再次从网络获取
+     */
+    private static DiskCache diskCache;
+    public static final long DEFAULT_DISK_CACHE_SIZE = 100 * 1024 * 1024;
+
+    /**
+     * 设置磁盘缓存目录和最大字节数
+     * @param File directory
+     * @param long maxSize
+     */
+    public static synchronized void setDiskCache(File directory, long maxSize) {
+        if (diskCache == null) {
+            diskCache = new DiskCache(directory, maxSize);
+        } else {
+            diskCache.setMaxSize(maxSize);
+        }
+    }
+
+    /**
+     * 加载统计：显示时内存缓存命中和未命中的次数，预加载和被取消的次数
+     */
+    private static int hits;
+    private static int misses;
+    private static int prefetches;
+    private static int cancels;
+    private static int coalesced;
+    // 未命中内存缓存时，从请求到显示第一张图像（预览或完整图像）和完整图像的耗时
+    private static int previews;
+    private static int firstImages;
+    private static long firstImageTime;
+    private static int fullImages;
+    private static long fullImageTime;
+
+    /**
+     * 进行中的加载：键值（全分辨率加 |full）-> 任务
+     * 同一图像的并发请求共用一个任务，只在主线程访问
+     */
+    private Map<String, ImageLoader> loaders = new HashMap<String, ImageLoader>();
+
+    /**
+     * 获取加载统计，用于按内存占用调整预加载数量
+     * @return JSONObject { hits, misses, prefetches, cancels, coalesced, previews, firstImageTime, fullImageTime }
+     *   耗时为平均毫秒数
+     */
+    public static synchronized JSONObject stats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("prefetches", prefetches);
+        stats.put("cancels", cancels);
+        stats.put("coalesced", coalesced);
+        stats.put("previews", previews);
+        stats.put("firstImageTime", firstImages == 0 ? 0 : firstImageTime / firstImages);
+        stats.put("fullImageTime", fullImages == 0 ? 0 : fullImageTime / fullImages);
+        return stats;
+    }
+
+    /**
+     * 根据索引加载图像，只在主线程调用
+     * 回调收到的位图不再显示时需调用 release() 释放
      * @param int index 图像索引
      * @param OnImageLoadedListener listener 加载完成后回调
+     * @return 取消加载，取消后不再回调
      */
-    public void load(int index, OnImageLoadedListener listener) {
+    public Cancellable load(int index, OnImageLoadedListener listener) {
+        return load(index, listener, null);
+    }
+
+    /**
+     * 根据索引加载图像，未命中内存缓存时先回调 JPEG 内嵌的 EXIF 缩略图作为预览
+     * 预览只读取文件头，完整图像到达前显示；没有内嵌缩略图时不回调预览
+     * @param int index 图像索引
+     * @param OnImageLoadedListener listener 加载完成后回调
+     * @param OnImageLoadedListener preview 预览回调，预览位图无需释放
+     * @return 取消加载，取消后不再回调
+     */
+    public Cancellable load(int index, OnImageLoadedListener listener, OnImageLoadedListener preview) {
         Bitmap bitmap = imageCache.get(key(index));
+        synchronized (GallerySource.class) {
+            if (bitmap != null) hits++; else misses++;
+        }
         if (bitmap != null) {
+            retain(bitmap);
             listener.onImageLoaded(bitmap);
+            return DONE;
+        }
+
+        // 记录显示耗时
+        final long start = SystemClock.uptimeMillis();
+        final boolean[] shown = new boolean[1];
+        return start(index, false, new OnImageLoadedListener() {
+            @Override
+            public void onImageLoaded(Bitmap bitmap) {
+                if (bitmap != null) timing(start, shown, true);
+                listener.onImageLoaded(bitmap);
+            }
+        }, preview == null ? null : new OnImageLoadedListener() {
+            @Override
+            public void onImageLoaded(Bitmap bitmap) {
+                timing(start, shown, false);
+                preview.onImageLoaded(bitmap);
+            }
+        });
+    }
+
+    /**
+     * 预加载图像到内存缓存，只在主线程调用
+     * 回调收到的位图需调用 release() 释放
+     * @param int index 图像索引
+     * @param OnImageLoadedListener listener 加载完成后回调
+     * @return 已在内存缓存中时返回 null，且不回调
+     */
+    public Cancellable prefetch(int index, OnImageLoadedListener listener) {
+        if (imageCache.get(key(index)) != null) return null;
+        synchronized (GallerySource.class) {
+            prefetches++;
+        }
+        return start(index, false, listener, null);
+    }
+
+    /**
+     * 加载全分辨率图像（放大查看时使用），不进入内存缓存，只在主线程调用
+     * 回调收到的位图不再显示时需调用 release() 释放
+     * @param int index 图像索引
+     * @param OnImageLoadedListener listener 加载完成后回调
+     * @return 图像未被降采样、无需加载时返回 null
+     */
+    public Cancellable loadFull(int index, OnImageLoadedListener listener) {
+        synchronized (GallerySource.class) {
+            if (!subsampled.contains(key(index))) return null;
+        }
+        return start(index, true, listener, null);
+    }
+
+    /**
+     * 图像是否超出全分辨率解码限制，需要分块渲染
+     * 图像解码一次后才能判断
+     * @param int index
+     * @return
+     */
+    public boolean isLarge(int index) {
+        synchronized (GallerySource.class) {
+            return large.contains(key(index));
+        }
+    }
+
+    /**
+     * 获取图像的本地缓存文件（分块渲染时使用）
+     * @param int index 图像索引
+     * @param OnFileLoadedListener listener 加载完成后回调，没有磁盘缓存或读取失败时为 null
+     * @return 取消加载，取消后不再回调
+     */
+    public Cancellable loadFile(int index, OnFileLoadedListener listener) {
+        FileLoader loader = new FileLoader(index, listener);
+        GalleryExecutor.io(loader);
+        return loader;
+    }
+
+    /**
+     * 释放不再显示的位图，已不在内存缓存中的位图放入复用池
+     * @param Bitmap bitmap
+     */
+    public static synchronized void release(Bitmap bitmap) {
+        if (bitmap == null) return;
+        Integer count = references.get(bitmap);
+        if (count == null) return;
+        if (count > 1) {
+            references.put(bitmap, count - 1);
+            return;
+        }
+        references.remove(bitmap);
+        if (orphans.remove(bitmap)) {
+            bitmapPool.put(bitmap);
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 启动加载，已有同一图像的加载在进行时只加入回调
+     */
+    private Cancellable start(int index, boolean full, OnImageLoadedListener listener, OnImageLoadedListener preview) {
+        String key = full ? key(index) + "|full" : key(index);
+        ImageLoader loader = loaders.get(key);
+        if (loader == null) {
+            loader = new ImageLoader(index, key, full);
+            loaders.put(key, loader);
+            GalleryExecutor.io(loader);
         } else {
-            new ImageLoader(listener).execute(index);
+            synchronized (GallerySource.class) {
+                coalesced++;
+            }
+            // 最近的请求优先
+            GalleryExecutor.promote(loader);
+        }
+        return loader.attach(listener, preview);
+    }
+
+    /**
+     * 读取阶段：获取图片的编码数据并交给解码阶段
+     * 磁盘缓存命中时解码缓存文件；否则读取数据流，经管道边读取边交给解码线程，
+     * 解码从文件头开始，无需等待最后一个字节，同时写入磁盘缓存并从文件头解析预览；
+     * 数据源不提供数据流时读取 data()
+     * @param ImageLoader task 任务取消后停止读取
+     * @throws IOException 交给解码阶段之前失败；之后的失败由解码阶段读到后结束任务
+     */
+    private void fetch(int index, boolean full, ImageLoader task) throws IOException {
+        DiskCache cache = diskCache;
+        String diskKey = key(index) + "|" + version(index);
+        if (cache != null) {
+            File file = cache.get(diskKey);
+            if (file != null) {
+                task.handOff(new Encoded(file, null, null));
+                return;
+            }
+        }
+
+        InputStream source = stream(index);
+        if (source == null) {
+            byte[] bytes = data(index);
+            File file = null;
+            if (cache != null) {
+                try {
+                    file = cache.put(diskKey, bytes);
+                } catch (IOException e) {
+                    // 写缓存失败不影响显示
+                }
+            }
+            task.handOff(file != null ? new Encoded(file, null, null) : new Encoded(null, bytes, null));
+            return;
+        }
+
+        DiskCache.Editor editor = null;
+        if (cache != null) {
+            try {
+                editor = cache.edit(diskKey);
+            } catch (IOException e) {
+                // 写缓存失败时只交给解码
+            }
+        }
+        StreamPipe pipe = new StreamPipe(PIPE_SIZE);
+        InputStream in = new BufferedInputStream(
+            new SourceStream(source, editor, pipe.sink(), task), BUFFER_SIZE);
+        task.handOff(new Encoded(null, null, pipe.source()));
+        try {
+            if (!full) preview(in, task);
+            byte[] b = new byte[BUFFER_SIZE];
+            // 不写缓存时，解码结束后不再读取剩余数据
+            while ((editor != null || !pipe.isClosed()) && in.read(b) > 0);
+            pipe.sink().close();
+            if (editor != null) {
+                editor.commit();
+                editor = null;
+            }
+        } catch (IOException e) {
+            pipe.fail(e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // 忽略关闭异常
+            }
+            if (editor != null) editor.abort();
+        }
+    }
+
+    /**
+     * 读取文件头中的 EXIF 缩略图作为预览，读取后回退到文件开头
+     * 网络流按顺序到达，文件头最先读到，无需等待整个文件
+     */
+    private static void preview(InputStream in, ImageLoader task) throws IOException {
+        in.mark(HEADER_LIMIT);
+        ExifThumbnail exif = ExifThumbnail.read(in);
+        in.reset();
+        if (exif == null || exif.getThumbnail() == null) return;
+
+        byte[] thumbnail = exif.getThumbnail();
+        Bitmap bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+        if (bitmap != null) task.preview(bitmap);
+    }
+
+    /**
+     * 获取图片的磁盘缓存文件，未命中时从数据源读取并写入
+     */
+    private File fetchFile(int index) throws IOException {
+        DiskCache cache = diskCache;
+        if (cache == null) return null;
+
+        String diskKey = key(index) + "|" + version(index);
+        File file = cache.get(diskKey);
+        if (file != null) return file;
+
+        InputStream in = stream(index);
+        if (in == null) return cache.put(diskKey, data(index));
+        try {
+            return cache.put(diskKey, in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 按目标尺寸降采样解码，优先复用池中的位图
+     * 先只读取文件头解码尺寸，回退后再解码图像；流由调用方关闭，解码后可继续读取剩余字节
+     * @param InputStream in 支持 mark/reset 的流
+     * @param boolean full 是否全分辨率解码
+     */
+    private static Bitmap decode(InputStream in, boolean full, String key) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        in.mark(HEADER_LIMIT);
+        BitmapFactory.decodeStream(in, null, options);
+        in.reset();
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+        int sampleSize = full
+            ? fullSampleSize(options.outWidth, options.outHeight)
+            : sampleSize(options.outWidth, options.outHeight);
+        if (!full) {
+            synchronized (GallerySource.class) {
+                if (sampleSize > 1) subsampled.add(key); else subsampled.remove(key);
+                if (fullSampleSize(options.outWidth, options.outHeight) > 1) large.add(key); else large.remove(key);
+            }
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inBitmap = bitmapPool.get(
+            (options.outWidth + sampleSize - 1) / sampleSize,
+            (options.outHeight + sampleSize - 1) / sampleSize);
+        in.mark(HEADER_LIMIT);
+        try {
+            Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
+            if (bitmap == null && options.inBitmap != null) bitmapPool.put(options.inBitmap);
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            // 复用的位图不满足解码要求，回退后改为新分配（分配在解析文件头之后、读取图像数据之前）
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            in.reset();
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+    }
+
+    /**
+     * 降采样倍数：解码后适应屏幕（fit center）显示时不被放大
+     * 按图像方向对齐目标的长短边，屏幕旋转后无需重新解码
+     */
+    private static synchronized int sampleSize(int width, int height) {
+        if (targetWidth <= 0 || targetHeight <= 0) return 1;
+        int targetLong = Math.max(targetWidth, targetHeight);
+        int targetShort = Math.min(targetWidth, targetHeight);
+        int longSide = Math.max(width, height);
+        int shortSide = Math.min(width, height);
+        int sampleSize = 1;
+        while (longSide / (sampleSize * 2) >= targetLong || shortSide / (sampleSize * 2) >= targetShort) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static int fullSampleSize(int width, int height) {
+        int sampleSize = 1;
+        while (Math.max(width, height) / sampleSize > MAX_FULL_SIZE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * 记录显示耗时，第一张图像只记录一次
+     */
+    private static synchronized void timing(long start, boolean[] shown, boolean full) {
+        long elapsed = SystemClock.uptimeMillis() - start;
+        if (!shown[0]) {
+            shown[0] = true;
+            firstImages++;
+            firstImageTime += elapsed;
+        }
+        if (full) {
+            fullImages++;
+            fullImageTime += elapsed;
+        } else {
+            previews++;
+        }
+    }
+
+    private static synchronized void retain(Bitmap bitmap) {
+        Integer count = references.get(bitmap);
+        references.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * 内存缓存淘汰的位图：未显示时直接放入复用池，否则等待释放
+     */
+    private static synchronized void recycle(Bitmap bitmap) {
+        if (references.containsKey(bitmap)) {
+            orphans.add(bitmap);
+        } else {
+            bitmapPool.put(bitmap);
         }
     }
 
@@ -59,38 +526,300 @@ public abstract class GallerySource {
     ///////////////////////////////////////////////////////
 
     /**
-     * 图像加载异步任务
-     * Android 不允许在主线程（UI线程）请求网络，否则抛出 NetworkOnMainThreadException
-     * 故开启新的任务线程获取图片数据
+     * 图像加载任务
+     * 在读取线程获取编码数据，交给解码线程解码，结果在主线程回调
      */
-    private class ImageLoader extends AsyncTask<Integer, Integer, Bitmap> {
+    private class ImageLoader implements Runnable {
 
-        // 加载完成后回调
-        private OnImageLoadedListener listener;
-        public ImageLoader(OnImageLoadedListener listener) {
-            this.listener = listener;
+        private int index;
+        private String key;
+        // 是否全分辨率加载
+        private boolean full;
+        // 加载完成后回调，全部取消后任务才取消，只在主线程访问
+        private List<Subscriber> subscribers = new ArrayList<Subscriber>();
+        // 已解码的预览，之后加入的回调也会收到
+        private Bitmap preview;
+        private volatile boolean cancelled;
+        // 缓存文件在解码前被淘汰时已重新读取过一次
+        private boolean refetched;
+
+        public ImageLoader(int index, String key, boolean full) {
+            this.index = index;
+            this.key = key;
+            this.full = full;
+        }
+
+        /**
+         * 加入回调
+         * @param OnImageLoadedListener preview 预览回调，可为 null
+         * @return 只取消该回调
+         */
+        public Cancellable attach(OnImageLoadedListener listener, OnImageLoadedListener preview) {
+            Subscriber subscriber = new Subscriber(listener, preview);
+            subscribers.add(subscriber);
+            if (this.preview != null && preview != null) preview.onImageLoaded(this.preview);
+            return subscriber;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
         }
 
-        // 执行任务：在子线程执行，不允许更新UI
+        /**
+         * 在读取线程调用，在主线程回调预览
+         */
+        public void preview(Bitmap bitmap) {
+            GalleryExecutor.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled) return;
+                    preview = bitmap;
+                    for (Subscriber subscriber : new ArrayList<Subscriber>(subscribers)) {
+                        if (subscriber.preview != null) subscriber.preview.onImageLoaded(bitmap);
+                    }
+                }
+            });
+        }
+
+        // 读取阶段：在读取线程执行
         @Override
-        protected Bitmap doInBackground(Integer... params) {
+        public void run() {
+            if (cancelled) return;
             try {
-                int index = params[0];
-                byte[] bytes = data(index);
-                Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+                fetch(index, full, this);
+            } catch (IOException e) {
+                if (!cancelled) finish(null);
+            }
+        }
+
+        /**
+         * 在读取线程调用，把编码数据交给解码线程；已取消时直接关闭，管道的写入方不再等待
+         */
+        private void handOff(Encoded encoded) {
+            if (cancelled) {
+                encoded.discard();
+                return;
+            }
+            GalleryExecutor.decode(new Runnable() {
+                @Override
+                public void run() {
+                    decodeStage(encoded);
+                }
+            });
+        }
 
-                // 加入缓存
-                imageCache.put(key(index), bitmap);
-                return bitmap;
+        // 解码阶段：在解码线程执行
+        private void decodeStage(Encoded encoded) {
+            if (cancelled) {
+                encoded.discard();
+                return;
+            }
+            Bitmap bitmap = null;
+            InputStream in = null;
+            try {
+                in = encoded.open();
+                bitmap = decode(in, full, key(index));
+            } catch (FileNotFoundException e) {
+                // 读取和解码之间缓存文件被 trim() 删除：重新读取一次，缓存已不再命中
+                if (encoded.file != null && !refetched) {
+                    refetched = true;
+                    GalleryExecutor.io(this);
+                    return;
+                }
             } catch (IOException e) {
-                return null;
+                // 回调 null
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // 忽略关闭异常
+                    }
+                }
+            }
+            if (bitmap != null) {
+                // 先计入引用，避免回调前被淘汰放入复用池
+                retain(bitmap);
+                if (full) {
+                    // 全分辨率图像只在放大时使用，不占用内存缓存
+                    synchronized (GallerySource.class) {
+                        orphans.add(bitmap);
+                    }
+                } else {
+                    // 加入缓存
+                    imageCache.put(key, bitmap);
+                }
+            }
+            finish(bitmap);
+        }
+
+        // 任务完成后在主线程回调，每个回调各持有一个引用；已取消时释放图像
+        private void finish(Bitmap bitmap) {
+            GalleryExecutor.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled) {
+                        release(bitmap);
+                        return;
+                    }
+                    if (loaders.get(key) == ImageLoader.this) loaders.remove(key);
+                    for (int i = 1; i < subscribers.size(); i++) {
+                        if (bitmap != null) retain(bitmap);
+                    }
+                    for (Subscriber subscriber : new ArrayList<Subscriber>(subscribers)) {
+                        subscriber.listener.onImageLoaded(bitmap);
+                    }
+                    subscribers.clear();
+                }
+            });
+        }
+
+        /**
+         * 单个回调，取消时只移除自己，全部移除后才取消任务
+         */
+        private class Subscriber implements Cancellable {
+            final OnImageLoadedListener listener;
+            final OnImageLoadedListener preview;
+
+            Subscriber(OnImageLoadedListener listener, OnImageLoadedListener preview) {
+                this.listener = listener;
+                this.preview = preview;
+            }
+
+            @Override
+            public void cancel() {
+                if (!subscribers.remove(this) || !subscribers.isEmpty()) return;
+                // 不中断线程，读取数据流时检查取消状态
+                cancelled = true;
+                GalleryExecutor.remove(ImageLoader.this);
+                synchronized (GallerySource.class) {
+                    cancels++;
+                }
+                if (loaders.get(key) == ImageLoader.this) loaders.remove(key);
             }
         }
+    }
+
+    /**
+     * 数据源读取流：读到的字节同时写入磁盘缓存和解码管道，任务取消后停止读取
+     */
+    private static class SourceStream extends FilterInputStream {
+
+        private OutputStream cache;
+        private OutputStream pipe;
+        private ImageLoader task;
+
+        SourceStream(InputStream in, OutputStream cache, OutputStream pipe, ImageLoader task) {
+            super(in);
+            this.cache = cache;
+            this.pipe = pipe;
+            this.task = task;
+        }
 
-        // 任务完成后回调：在主线程执行，允许更新UI
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            listener.onImageLoaded(bitmap);
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (task.isCancelled()) throw new InterruptedIOException("Load cancelled");
+            int n = in.read(b, off, len);
+            if (n > 0 && cache != null) cache.write(b, off, n);
+            if (n > 0 && pipe != null) pipe.write(b, off, n);
+            return n;
+        }
+
+        // 跳过的字节也要写入缓存
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] b = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            int len = read(b, 0, b.length);
+            return len < 0 ? 0 : len;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * 交给解码阶段的编码数据：磁盘缓存文件、内存中的字节或读取线程正在写入的管道
+     */
+    private static class Encoded {
+        final File file;
+        final byte[] bytes;
+        final InputStream stream;
+
+        Encoded(File file, byte[] bytes, InputStream stream) {
+            this.file = file;
+            this.bytes = bytes;
+            this.stream = stream;
+        }
+
+        /**
+         * @throws FileNotFoundException 缓存文件已被淘汰删除
+         */
+        InputStream open() throws IOException {
+            if (file != null) return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            if (bytes != null) return new ByteArrayInputStream(bytes);
+            return new BufferedInputStream(stream, BUFFER_SIZE);
+        }
+
+        /**
+         * 不再解码时关闭管道
+         */
+        void discard() {
+            if (stream == null) return;
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // 忽略关闭异常
+            }
+        }
+    }
+
+    /**
+     * 本地缓存文件加载任务，在读取线程执行
+     */
+    private class FileLoader implements Runnable, Cancellable {
+
+        private int index;
+        private OnFileLoadedListener listener;
+        private volatile boolean cancelled;
+
+        public FileLoader(int index, OnFileLoadedListener listener) {
+            this.index = index;
+            this.listener = listener;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            GalleryExecutor.remove(this);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+            File file = null;
+            try {
+                file = fetchFile(index);
+            } catch (IOException e) {
+                // 回调 null
+            }
+            deliver(file);
+        }
+
+        private void deliver(File file) {
+            GalleryExecutor.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!cancelled) listener.onFileLoaded(file);
+                }
+            });
         }
     }
 
@@ -103,7 +832,29 @@ public abstract class GallerySource {
      * 需实现 onImageLoaded 方法
      */
     public interface OnImageLoadedListener {
+        // 加载失败时 bitmap 为 null
         public void onImageLoaded(Bitmap bitmap);
     }
 
+    /**
+     * 本地缓存文件加载完成后回调
+     */
+    public interface OnFileLoadedListener {
+        public void onFileLoaded(File file);
+    }
+
+    /**
+     * 可取消的加载
+     */
+    public interface Cancellable {
+        public void cancel();
+    }
+
+    // 已同步完成的加载
+    private static final Cancellable DONE = new Cancellable() {
+        @Override
+        public void cancel() {
+        }
+    };
+
 }
@@ -201,6 +201,23 @@ public class PinchImageView extends ImageView  {
         }
     }
 
+    /**
+     * 获取原图像素到屏幕像素的当前缩放比例
+     *
+     * 大于1时原图像素被放大显示,此时换用更高分辨率的原图才能看到更多细节.
+     * 当尚未布局或者原图不存在时,其值无意义.所以在调用前需要确保前置条件有效,否则将影响计算结果.
+     *
+     * @return 缩放比例
+     * @see #getCurrentImageMatrix(Matrix)
+     */
+    public float getCurrentScale() {
+        Matrix matrix = MathUtils.matrixTake();
+        getCurrentImageMatrix(matrix);
+        float scale = MathUtils.getMatrixScale(matrix)[0];
+        MathUtils.matrixGiven(matrix);
+        return scale;
+    }
+
     /**
      * 获取当前设置的mask
      * @return 返回当前的mask对象副本,如果当前没有设置mask则返回null
@@ -515,6 +532,10 @@ public class PinchImageView extends ImageView  {
      * @see #doubleTap(float, float)
      */
     protected float getMaxScale() {
+        //分块渲染时按原图分辨率放大
+        if (mTileRenderer != null && isReady()) {
+            return MAX_SCALE * mTileRenderer.getScaleFactor(getDrawable().getIntrinsicWidth());
+        }
         return MAX_SCALE;
     }
 
@@ -585,6 +606,39 @@ public class PinchImageView extends ImageView  {
         } else {
             super.onDraw(canvas);
         }
+        //在底图上方绘制高分辨率图块
+        if (mTileRenderer != null && isReady()) {
+            Matrix matrix = MathUtils.matrixTake();
+            getCurrentImageMatrix(matrix);
+            if (mMask != null) {
+                canvas.save();
+                canvas.clipRect(mMask);
+            }
+            mTileRenderer.draw(canvas, matrix, getDrawable().getIntrinsicWidth(), getWidth(), getHeight());
+            if (mMask != null) {
+                canvas.restore();
+            }
+            MathUtils.matrixGiven(matrix);
+        }
+    }
+
+    ////////////////////////////////分块渲染////////////////////////////////
+
+    /**
+     * 超大图像的分块渲染器
+     * 底图为降采样后的整图,放大后在其上方绘制原图分辨率的图块
+     */
+    private TileRenderer mTileRenderer;
+
+    /**
+     * 设置分块渲染器,传null取消分块渲染
+     * 不负责释放之前的渲染器
+     *
+     * @param tileRenderer
+     */
+    public void setTileRenderer(TileRenderer tileRenderer) {
+        mTileRenderer = tileRenderer;
+        invalidate();
     }
 
     ////////////////////////////////有效性判断////////////////////////////////
@@ -0,0 +1,161 @@
+package net.cloudseat.smbova;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * 有界内存管道
+ * 读取线程边从服务器读取边写入，解码线程同时从另一端读取，解码无需等待最后一个字节，
+ * 内存中最多只有 capacity 个字节。读取端关闭后写入的数据直接丢弃，
+ * 读取线程可以继续把剩余数据写入磁盘缓存
+ */
+public class StreamPipe {
+
+    private final byte[] buffer;
+    private int head;
+    private int count;
+    private boolean writerClosed;
+    private boolean readerClosed;
+    private IOException error;
+
+    private final InputStream source = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return StreamPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (StreamPipe.this) {
+                return count;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (StreamPipe.this) {
+                readerClosed = true;
+                count = 0;
+                StreamPipe.this.notifyAll();
+            }
+        }
+    };
+
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            StreamPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            synchronized (StreamPipe.this) {
+                writerClosed = true;
+                StreamPipe.this.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * @param int capacity 缓冲字节数，写满后写入方等待读取
+     */
+    public StreamPipe(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * 读取端，数据写完并关闭写入端后返回 -1
+     * @return InputStream
+     */
+    public InputStream source() {
+        return source;
+    }
+
+    /**
+     * 写入端
+     * @return OutputStream
+     */
+    public OutputStream sink() {
+        return sink;
+    }
+
+    /**
+     * 读取端是否已关闭（不再需要数据）
+     * @return boolean
+     */
+    public synchronized boolean isClosed() {
+        return readerClosed;
+    }
+
+    /**
+     * 写入失败时调用，读取端读完已缓冲的数据后抛出该异常
+     * @param IOException e
+     */
+    public synchronized void fail(IOException e) {
+        error = e;
+        writerClosed = true;
+        notifyAll();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        try {
+            while (count == 0 && !writerClosed && !readerClosed) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Pipe read interrupted");
+        }
+        if (readerClosed) throw new IOException("Pipe closed");
+        if (count == 0) {
+            if (error != null) throw error;
+            return -1;
+        }
+        int n = Math.min(len, count);
+        int first = Math.min(n, buffer.length - head);
+        System.arraycopy(buffer, head, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+        head = (head + n) % buffer.length;
+        count -= n;
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (writerClosed) throw new IOException("Pipe closed");
+        while (len > 0) {
+            try {
+                while (count == buffer.length && !readerClosed) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Pipe write interrupted");
+            }
+            // 读取端已不再需要数据
+            if (readerClosed) return;
+            int tail = (head + count) % buffer.length;
+            int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+            System.arraycopy(b, off, buffer, tail, n);
+            count += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+package net.cloudseat.smbova;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.LruCache;
+import android.view.View;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 超大图像分块渲染
+ * 用 BitmapRegionDecoder 从本地缓存文件中只解码可见区域的图块，
+ * 降采样级别随当前缩放比例变化；图块按 LRU 缓存，在后台线程解码，
+ * 最近一次绘制需要的图块优先解码，已移出可见区域的图块不再解码
+ */
+public class TileRenderer {
+
+    // 图块解码后的边长（像素）
+    private static final int TILE_SIZE = 512;
+
+    // 所有实例共用一个解码线程，BitmapRegionDecoder 的解码本身也是串行的
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+    private File file;
+    private View view;
+    private Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // 在解码线程中打开，打开前不绘制任何图块
+    private volatile BitmapRegionDecoder decoder;
+    private volatile int width;
+    private volatile int height;
+    private volatile boolean released;
+
+    // 图块缓存：降采样/列/行 -> 位图
+    private LruCache<String, Bitmap> tiles;
+    // 等待解码的图块，后加入的先解码
+    private LinkedList<Tile> queue = new LinkedList<Tile>();
+    private Set<String> queued = new HashSet<String>();
+    // 最近一次绘制需要的图块
+    private Set<String> wanted = new HashSet<String>();
+    private boolean draining;
+
+    /**
+     * @param File file 本地图像文件
+     * @param View view 图块解码完成后重绘的控件
+     */
+    public TileRenderer(File file, View view) {
+        this.file = file;
+        this.view = view;
+
+        // 将最大可用内存的 1/8 作为图块缓存
+        int cacheSize = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        tiles = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    /**
+     * 原图像素与底图像素之比，未打开时为 1
+     * @param int baseWidth 底图宽度
+     * @return
+     */
+    public float getScaleFactor(int baseWidth) {
+        return decoder == null || baseWidth <= 0 ? 1f : Math.max(1f, (float) width / baseWidth);
+    }
+
+    /**
+     * 在底图上方绘制可见图块，缺少的图块交给解码线程
+     * 底图的清晰度已足够时不绘制
+     * @param Canvas canvas
+     * @param Matrix imageMatrix 底图到控件的变换矩阵
+     * @param int baseWidth 底图宽度
+     * @param int viewWidth 控件宽度
+     * @param int viewHeight 控件高度
+     */
+    public void draw(Canvas canvas, Matrix imageMatrix, int baseWidth, int viewWidth, int viewHeight) {
+        if (decoder == null || released) return;
+        float factor = (float) width / baseWidth;
+
+        // 原图到控件的变换
+        Matrix matrix = new Matrix(imageMatrix);
+        matrix.preScale(1f / factor, 1f / factor);
+        float scale = PinchImageView.MathUtils.getMatrixScale(matrix)[0];
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1f) {
+            sampleSize *= 2;
+        }
+        List<Tile> missing = new ArrayList<Tile>();
+        Set<String> visible = new HashSet<String>();
+        if (sampleSize < factor) {
+            // 可见区域映射回原图坐标
+            Matrix inverse = new Matrix();
+            matrix.invert(inverse);
+            RectF area = new RectF(0, 0, viewWidth, viewHeight);
+            inverse.mapRect(area);
+            if (area.intersect(0, 0, width, height)) {
+                int span = TILE_SIZE * sampleSize;
+                canvas.save();
+                canvas.concat(matrix);
+                for (int row = (int) area.top / span; row * span < area.bottom; row++) {
+                    for (int col = (int) area.left / span; col * span < area.right; col++) {
+                        Tile tile = new Tile(sampleSize, col, row, span, width, height);
+                        visible.add(tile.key);
+                        Bitmap bitmap = tiles.get(tile.key);
+                        if (bitmap != null) {
+                            canvas.drawBitmap(bitmap, null, tile.region, paint);
+                        } else {
+                            missing.add(tile);
+                        }
+                    }
+                }
+                canvas.restore();
+            }
+        }
+        request(visible, missing);
+    }
+
+    /**
+     * 释放解码器和图块缓存
+     */
+    public void release() {
+        released = true;
+        synchronized (this) {
+            queue.clear();
+            queued.clear();
+            wanted.clear();
+        }
+        tiles.evictAll();
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (decoder != null) decoder.recycle();
+            }
+        });
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private void open() {
+        if (released) return;
+        try {
+            BitmapRegionDecoder regionDecoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+            width = regionDecoder.getWidth();
+            height = regionDecoder.getHeight();
+            decoder = regionDecoder;
+            view.postInvalidate();
+        } catch (IOException e) {
+            // 不支持分块解码的格式，只显示底图
+        }
+    }
+
+    private synchronized void request(Set<String> visible, List<Tile> missing) {
+        wanted = visible;
+        for (Tile tile : missing) {
+            if (queued.add(tile.key)) queue.add(tile);
+        }
+        if (!draining && !queue.isEmpty()) {
+            draining = true;
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    private synchronized Tile next() {
+        Tile tile;
+        while ((tile = queue.pollLast()) != null) {
+            queued.remove(tile.key);
+            if (wanted.contains(tile.key)) return tile;
+        }
+        draining = false;
+        return null;
+    }
+
+    private void drain() {
+        Tile tile;
+        while ((tile = next()) != null) {
+            if (released) return;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = tile.sampleSize;
+            Bitmap bitmap = decoder.decodeRegion(tile.region, options);
+            if (bitmap != null) {
+                tiles.put(tile.key, bitmap);
+                view.postInvalidate();
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 图块在原图中的位置
+     */
+    private static class Tile {
+        final String key;
+        final int sampleSize;
+        final Rect region;
+
+        Tile(int sampleSize, int col, int row, int span, int width, int height) {
+            this.key = sampleSize + "/" + col + "/" + row;
+            this.sampleSize = sampleSize;
+            this.region = new Rect(col * span, row * span,
+                Math.min((col + 1) * span, width), Math.min((row + 1) * span, height));
+        }
+    }
+
+}
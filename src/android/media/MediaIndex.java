@@ -0,0 +1,238 @@
+package net.cloudseat.smbova;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 媒体容器索引定位
+ * 播放器准备和寻轨时需要读取容器的索引结构：MP4 的 moov，MKV 的 SeekHead 和 Cues。
+ * 它们常位于文件末尾，这里只解析最外层的结构找出其位置，供数据源提前读取并常驻缓存
+ */
+class MediaIndex {
+
+    // MKV 元素 ID
+    private static final long EBML = 0x1A45DFA3L;
+    private static final long SEGMENT = 0x18538067L;
+    private static final long SEEK_HEAD = 0x114D9B74L;
+    private static final long SEEK = 0x4DBBL;
+    private static final long SEEK_ID = 0x53ABL;
+    private static final long SEEK_POSITION = 0x53ACL;
+    private static final long CUES = 0x1C53BB6BL;
+    private static final long CLUSTER = 0x1F43B675L;
+
+    // 最多检查的顶层结构数
+    private static final int MAX_ELEMENTS = 32;
+    // SeekHead 读取上限
+    private static final int MAX_SEEK_HEAD = 64 * 1024;
+
+    /**
+     * 查找索引结构所在的文件范围
+     * @param Reader reader
+     * @param long length 文件大小
+     * @return 范围列表 {位置, 长度}，无法识别的容器返回空列表
+     */
+    static List<long[]> find(Reader reader, long length) throws IOException {
+        List<long[]> ranges = new ArrayList<long[]>();
+        if (length < 12) return ranges;
+
+        byte[] head = reader.read(0, 12);
+        if (head[4] == 'f' && head[5] == 't' && head[6] == 'y' && head[7] == 'p') {
+            findMp4(reader, length, ranges);
+        } else
+        if (value(head, 0, 4) == EBML) {
+            findMkv(reader, length, ranges);
+        }
+        return ranges;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 依次跳过顶层 box 直到 moov
+     */
+    private static void findMp4(Reader reader, long length, List<long[]> ranges) throws IOException {
+        long offset = 0;
+        for (int i = 0; i < MAX_ELEMENTS && offset + 8 <= length; i++) {
+            byte[] header = reader.read(offset, (int) Math.min(16, length - offset));
+            long size = value(header, 0, 4);
+            int headerSize = 8;
+            if (size == 1 && header.length == 16) {
+                size = value(header, 8, 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = length - offset;
+            }
+            if (size < headerSize) return;
+            if (header[4] == 'm' && header[5] == 'o' && header[6] == 'o' && header[7] == 'v') {
+                ranges.add(new long[] { offset, Math.min(size, length - offset) });
+                return;
+            }
+            offset += size;
+        }
+    }
+
+    /**
+     * 在 Segment 开头查找 SeekHead，再按其中记录的位置找到 Cues 和其他 SeekHead
+     */
+    private static void findMkv(Reader reader, long length, List<long[]> ranges) throws IOException {
+        Element ebml = element(reader, 0, length);
+        if (ebml == null || ebml.size < 0) return;
+        Element segment = element(reader, ebml.end(), length);
+        if (segment == null || segment.id != SEGMENT) return;
+
+        long base = segment.data;
+        Set<Long> positions = new HashSet<Long>();
+        List<Long> pending = new ArrayList<Long>();
+        long offset = base;
+        for (int i = 0; i < MAX_ELEMENTS && offset < length; i++) {
+            Element element = element(reader, offset, length);
+            if (element == null || element.id == CLUSTER || element.size < 0) break;
+            if (element.id == SEEK_HEAD) {
+                positions.add(element.offset - base);
+                pending.addAll(seeks(reader, element, base, length));
+                add(ranges, element, length);
+            } else if (element.id == CUES) {
+                add(ranges, element, length);
+                return;
+            }
+            offset = element.end();
+        }
+
+        // SeekHead 指向的 Cues 和后续 SeekHead
+        while (!pending.isEmpty()) {
+            long position = pending.remove(0);
+            if (!positions.add(position) || base + position >= length) continue;
+            Element element = element(reader, base + position, length);
+            if (element == null || element.size < 0) continue;
+            if (element.id == CUES) {
+                add(ranges, element, length);
+            } else if (element.id == SEEK_HEAD) {
+                pending.addAll(seeks(reader, element, base, length));
+                add(ranges, element, length);
+            }
+        }
+    }
+
+    /**
+     * 返回 SeekHead 中 Cues 和 SeekHead 的相对位置
+     * 文件被截断时只读取到文件末尾
+     */
+    private static List<Long> seeks(Reader reader, Element seekHead, long base, long length) throws IOException {
+        List<Long> positions = new ArrayList<Long>();
+        long available = Math.min(Math.min(seekHead.size, MAX_SEEK_HEAD), length - seekHead.data);
+        if (available <= 0) return positions;
+        byte[] data = reader.read(seekHead.data, (int) available);
+        int pos = 0;
+        while (pos < data.length) {
+            Element seek = parse(data, pos, 0);
+            if (seek == null || seek.size < 0 || seek.end() > data.length) break;
+            if (seek.id == SEEK) {
+                long id = 0;
+                long position = -1;
+                int child = (int) seek.data;
+                while (child < seek.end()) {
+                    Element element = parse(data, child, 0);
+                    if (element == null || element.size < 0 || element.end() > seek.end()) break;
+                    if (element.id == SEEK_ID) {
+                        id = value(data, (int) element.data, (int) Math.min(element.size, 4));
+                    } else if (element.id == SEEK_POSITION) {
+                        position = value(data, (int) element.data, (int) Math.min(element.size, 8));
+                    }
+                    child = (int) element.end();
+                }
+                if ((id == CUES || id == SEEK_HEAD) && position >= 0) {
+                    positions.add(position);
+                }
+            }
+            pos = (int) seek.end();
+        }
+        return positions;
+    }
+
+    private static void add(List<long[]> ranges, Element element, long length) {
+        ranges.add(new long[] { element.offset, Math.min(element.end(), length) - element.offset });
+    }
+
+    private static Element element(Reader reader, long offset, long length) throws IOException {
+        if (offset < 0 || offset >= length) return null;
+        return parse(reader.read(offset, (int) Math.min(12, length - offset)), 0, offset);
+    }
+
+    /**
+     * 解析 EBML 元素头，数据不完整时返回 null
+     * @param byte[] buffer
+     * @param int pos 元素头在缓冲中的位置
+     * @param long base 缓冲在文件中的位置
+     */
+    private static Element parse(byte[] buffer, int pos, long base) {
+        if (pos >= buffer.length) return null;
+        int idLength = vintLength(buffer[pos]);
+        if (idLength == 0 || idLength > 4 || pos + idLength >= buffer.length) return null;
+        long id = value(buffer, pos, idLength);
+
+        int p = pos + idLength;
+        int sizeLength = vintLength(buffer[p]);
+        if (sizeLength == 0 || p + sizeLength > buffer.length) return null;
+        int mask = 0xFF >> sizeLength;
+        long size = buffer[p] & mask;
+        boolean unknown = size == mask;
+        for (int i = 1; i < sizeLength; i++) {
+            size = (size << 8) | (buffer[p + i] & 0xFF);
+            unknown &= (buffer[p + i] & 0xFF) == 0xFF;
+        }
+        return new Element(id, base + pos, base + p + sizeLength, unknown ? -1 : size);
+    }
+
+    private static int vintLength(byte first) {
+        for (int i = 0; i < 8; i++) {
+            if ((first & (0x80 >> i)) != 0) return i + 1;
+        }
+        return 0;
+    }
+
+    private static long value(byte[] buffer, int pos, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (buffer[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * EBML 元素，size 为 -1 表示长度未知
+     */
+    private static class Element {
+        final long id;
+        final long offset;
+        final long data;
+        final long size;
+
+        Element(long id, long offset, long data, long size) {
+            this.id = id;
+            this.offset = offset;
+            this.data = data;
+            this.size = size;
+        }
+
+        long end() {
+            return data + size;
+        }
+    }
+
+    /**
+     * 按位置读取文件数据，调用方保证范围不超出文件末尾
+     */
+    interface Reader {
+        byte[] read(long position, int size) throws IOException;
+    }
+
+}
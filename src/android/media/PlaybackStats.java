@@ -0,0 +1,197 @@
+package net.cloudseat.smbova;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * 媒体播放统计
+ * 记录最近一次播放的启动耗时、卡顿次数和时长、寻轨耗时，
+ * 以及数据源从服务器和缓存读取的字节数、读取延迟分布和链路吞吐量
+ */
+class PlaybackStats {
+
+    // 保留最近的读取延迟样本数
+    private static final int LATENCY_SAMPLES = 1024;
+
+    private static long length;
+    private static long startupTime;
+    private static long firstFrameTime;
+    private static int duration;
+
+    private static int rebuffers;
+    private static long rebufferTime;
+    private static long rebufferStart;
+
+    private static int seeks;
+    private static long seekTime;
+
+    private static long smbBytes;
+    // 至少有一个句柄在读取服务器的总时长：读取线程和预读线程的读取会重叠，重叠部分只计一次
+    private static long smbTime;
+    private static int fetching;
+    private static long fetchingSince;
+    private static long cacheBytes;
+    private static long[] latencies = new long[LATENCY_SAMPLES];
+    private static int latencyCount;
+
+    /**
+     * 开始新的播放，清空上次的统计
+     * @param long fileLength 媒体文件大小
+     */
+    static synchronized void start(long fileLength) {
+        length = fileLength;
+        startupTime = firstFrameTime = 0;
+        duration = 0;
+        rebuffers = 0;
+        rebufferTime = rebufferStart = 0;
+        seeks = 0;
+        seekTime = 0;
+        smbBytes = smbTime = cacheBytes = 0;
+        // 上次播放未结束的读取仍会调用 fetchFinished()，不清零 fetching
+        fetchingSince = System.nanoTime();
+        latencyCount = 0;
+    }
+
+    /**
+     * 播放器准备完成
+     * @param long millis 准备耗时
+     * @param int mediaDuration 媒体时长（毫秒）
+     */
+    static synchronized void prepared(long millis, int mediaDuration) {
+        startupTime = millis;
+        duration = mediaDuration;
+    }
+
+    /**
+     * 首帧渲染
+     * @param long millis 从开始准备到首帧的耗时
+     */
+    static synchronized void firstFrame(long millis) {
+        if (firstFrameTime == 0) firstFrameTime = millis;
+    }
+
+    /**
+     * 播放中缓冲开始/结束
+     * @param long now SystemClock.elapsedRealtime()
+     */
+    static synchronized void bufferingStart(long now) {
+        if (rebufferStart != 0) return;
+        rebufferStart = now;
+        rebuffers++;
+    }
+
+    static synchronized void bufferingEnd(long now) {
+        if (rebufferStart == 0) return;
+        rebufferTime += now - rebufferStart;
+        rebufferStart = 0;
+    }
+
+    /**
+     * 寻轨完成
+     * @param long millis 寻轨耗时
+     */
+    static synchronized void seeked(long millis) {
+        seeks++;
+        seekTime += millis;
+    }
+
+    /**
+     * 数据源开始从服务器读取一块
+     * @param long now System.nanoTime()
+     */
+    static synchronized void fetchStarted(long now) {
+        if (fetching++ == 0) fetchingSince = now;
+    }
+
+    /**
+     * 数据源从服务器读取一块结束，所有句柄都空闲时累计这段忙碌时间
+     * @param int bytes 读取的字节数，失败时为 0
+     * @param long now System.nanoTime()
+     */
+    static synchronized void fetchFinished(int bytes, long now) {
+        smbBytes += bytes;
+        if (--fetching == 0) smbTime += now - fetchingSince;
+    }
+
+    /**
+     * 数据源返回给播放器的数据
+     * @param int bytes
+     * @param boolean cached 是否全部来自缓存
+     * @param long nanos readAt 耗时
+     */
+    static synchronized void read(int bytes, boolean cached, long nanos) {
+        if (cached) cacheBytes += bytes;
+        latencies[latencyCount++ % LATENCY_SAMPLES] = nanos;
+    }
+
+    /**
+     * 统计结果：时间单位为毫秒，码率和吞吐量单位为 kbit/s
+     */
+    static synchronized JSONObject stats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("startupTime", startupTime);
+        stats.put("firstFrameTime", firstFrameTime);
+        stats.put("rebuffers", rebuffers);
+        stats.put("rebufferTime", rebufferTime);
+        stats.put("seeks", seeks);
+        stats.put("seekTime", seeks == 0 ? 0 : seekTime / seeks);
+        stats.put("smbBytes", smbBytes);
+        stats.put("cacheBytes", cacheBytes);
+
+        long[] samples = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_SAMPLES));
+        Arrays.sort(samples);
+        JSONObject latency = new JSONObject();
+        latency.put("p50", percentile(samples, 50));
+        latency.put("p90", percentile(samples, 90));
+        latency.put("p99", percentile(samples, 99));
+        stats.put("readLatency", latency);
+
+        stats.put("bitrate", bitrate());
+        stats.put("throughput", throughput());
+        return stats;
+    }
+
+    /**
+     * 浮层显示的摘要
+     */
+    static synchronized String summary() {
+        long[] samples = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_SAMPLES));
+        Arrays.sort(samples);
+        return "startup " + startupTime + "ms  first frame " + firstFrameTime + "ms\n"
+            + "rebuffers " + rebuffers + " (" + rebufferTime + "ms)  seeks " + seeks
+            + " (" + (seeks == 0 ? 0 : seekTime / seeks) + "ms)\n"
+            + "smb " + smbBytes / 1024 + "KB  cache " + cacheBytes / 1024 + "KB\n"
+            + "read p50 " + percentile(samples, 50) + "ms  p90 " + percentile(samples, 90)
+            + "ms  p99 " + percentile(samples, 99) + "ms\n"
+            + "bitrate " + bitrate() + "kbps  link " + throughput() + "kbps";
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private static long bitrate() {
+        return duration == 0 ? 0 : length * 8 / duration;
+    }
+
+    /**
+     * 链路吞吐量：读取的字节数除以服务器忙碌时长，包括正在进行的读取
+     */
+    private static long throughput() {
+        long busy = smbTime;
+        if (fetching > 0) busy += System.nanoTime() - fetchingSince;
+        return busy <= 0 ? 0 : smbBytes * 8 * 1000000 / busy;
+    }
+
+    /**
+     * 已排序样本的百分位数（毫秒，保留一位小数）
+     */
+    private static double percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) return 0;
+        int index = Math.min(sorted.length - 1, sorted.length * percent / 100);
+        return Math.round(sorted[index] / 100000.0) / 10.0;
+    }
+
+}
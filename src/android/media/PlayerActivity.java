@@ -13,6 +13,7 @@ import android.media.TimedText;
 
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 
 import android.view.GestureDetector;
 import android.view.MotionEvent;
@@ -41,6 +42,8 @@ public class PlayerActivity extends Activity {
     // 接收外部传来的媒体数据源
     public static MediaDataSource dataSource;
     public static String timedTextFile;
+    // 是否显示播放统计浮层
+    public static boolean statsOverlay;
     public static final boolean DEBUG = false;
 
     // 布局控件
@@ -54,6 +57,7 @@ public class PlayerActivity extends Activity {
     private TextView position;
     private TextView duration;
     private TextView subtitle;
+    private TextView stats;
     private GestureDetector gestureDetector;
 
     // 媒体播放器
@@ -61,20 +65,42 @@ public class PlayerActivity extends Activity {
     private boolean restartOnResume;
     private boolean isSeeking;
 
+    // 准备和寻轨的开始时间，用于计算耗时
+    private long prepareStart;
+    private long seekStart;
+    private boolean isPrepared;
+    private boolean seekPending;
+
+    // 播放中进度超过该时长（毫秒）没有前进视为卡顿
+    private static final long STALL_THRESHOLD = 500;
+    private int lastPosition = -1;
+    private long lastAdvance;
+    private boolean stalled;
+
     // 每隔 100ms 更新进度条
     private Handler progressHandler = new Handler();
     private Runnable progressThread = new Runnable() {
         @Override
         public void run() {
+            int pos = mediaPlayer.getCurrentPosition();
             if (!isSeeking) {
-                int pos = mediaPlayer.getCurrentPosition();
                 seekBar.setProgress(pos);
                 position.setText(formatDuration(pos));
             }
+            checkStall(pos, SystemClock.elapsedRealtime());
             progressHandler.postDelayed(this, 100);
         }
     };
 
+    // 每隔 1s 更新统计浮层
+    private Runnable statsThread = new Runnable() {
+        @Override
+        public void run() {
+            stats.setText(PlaybackStats.summary());
+            progressHandler.postDelayed(this, 1000);
+        }
+    };
+
     ///////////////////////////////////////////////////////
     // Activity override methods
     ///////////////////////////////////////////////////////
@@ -113,6 +139,7 @@ public class PlayerActivity extends Activity {
         super.onDestroy();
         debug("Activity onDestroy");
         progressHandler.removeCallbacks(progressThread);
+        progressHandler.removeCallbacks(statsThread);
         mediaPlayer.stop();
         mediaPlayer.release();
     }
@@ -162,11 +189,16 @@ public class PlayerActivity extends Activity {
         position = (TextView) findViewById(R.id.position);
         duration = (TextView) findViewById(R.id.duration);
         subtitle = (TextView) findViewById(R.id.subtitle);
+        stats = (TextView) findViewById(R.id.stats);
         audioDisc = (ImageView) findViewById(R.id.audio_disc);
 
         // 默认隐藏控件
         controls.setVisibility(View.INVISIBLE);
         audioDisc.setVisibility(View.INVISIBLE);
+        if (statsOverlay) {
+            stats.setVisibility(View.VISIBLE);
+            progressHandler.post(statsThread);
+        }
 
         // 使用 GestureDetector 监听单击和双击事件
         gestureDetector = new GestureDetector(PlayerActivity.this, new GestureDetector.SimpleOnGestureListener() {
@@ -212,6 +244,8 @@ public class PlayerActivity extends Activity {
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
                 isSeeking = false;
+                seekStart = SystemClock.elapsedRealtime();
+                seekPending = true;
                 mediaPlayer.seekTo(seekBar.getProgress());
                 loading.setVisibility(View.VISIBLE);
                 audioDisc.setVisibility(View.INVISIBLE);
@@ -253,11 +287,16 @@ public class PlayerActivity extends Activity {
             console("Load timed text error.");
         }
 
+        prepareStart = SystemClock.elapsedRealtime();
         mediaPlayer.prepareAsync();
         // 数据预加载完成后回调
         mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
             @Override
             public void onPrepared(MediaPlayer mediaPlayer) {
+                long prepareTime = SystemClock.elapsedRealtime() - prepareStart;
+                debug("Prepared in " + prepareTime + "ms");
+                PlaybackStats.prepared(prepareTime, mediaPlayer.getDuration());
+                isPrepared = true;
                 mediaPlayer.start();
                 progressHandler.post(progressThread);
 
@@ -312,10 +351,33 @@ public class PlayerActivity extends Activity {
         mediaPlayer.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
             @Override
             public void onSeekComplete(MediaPlayer mediaPlayer) {
+                long seekTime = SystemClock.elapsedRealtime() - seekStart;
+                debug("Seeked in " + seekTime + "ms");
+                PlaybackStats.seeked(seekTime);
+                seekPending = false;
                 loading.setVisibility(View.INVISIBLE);
                 audioDisc.setVisibility(View.VISIBLE);
             }
         });
+        // 首帧渲染和播放中缓冲回调，寻轨引起的缓冲不计为卡顿
+        mediaPlayer.setOnInfoListener(new MediaPlayer.OnInfoListener() {
+            @Override
+            public boolean onInfo(MediaPlayer mediaPlayer, int what, int extra) {
+                long now = SystemClock.elapsedRealtime();
+                if (what == MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START) {
+                    PlaybackStats.firstFrame(now - prepareStart);
+                } else
+                if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+                    if (isPrepared && !seekPending) PlaybackStats.bufferingStart(now);
+                    loading.setVisibility(View.VISIBLE);
+                } else
+                if (what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+                    PlaybackStats.bufferingEnd(now);
+                    if (!seekPending) loading.setVisibility(View.INVISIBLE);
+                }
+                return false;
+            }
+        });
         // 播放完成后回调
         mediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
             @Override
@@ -381,6 +443,30 @@ public class PlayerActivity extends Activity {
         }
     }
 
+    /**
+     * 卡顿检测：MediaDataSource 数据源不会收到 MEDIA_INFO_BUFFERING_START/END（只有网络缓存的
+     * http 数据源才有），因此按播放进度判断：播放中进度停止前进超过 STALL_THRESHOLD 计为一次卡顿，
+     * 卡顿时长从进度最后一次前进算起；暂停和寻轨不计
+     */
+    private void checkStall(int pos, long now) {
+        boolean playing = isPrepared && !seekPending && !isSeeking && mediaPlayer.isPlaying();
+        if (!playing || pos != lastPosition) {
+            if (stalled) {
+                stalled = false;
+                PlaybackStats.bufferingEnd(now);
+                if (!seekPending) loading.setVisibility(View.INVISIBLE);
+            }
+            lastPosition = pos;
+            lastAdvance = now;
+            return;
+        }
+        if (!stalled && now - lastAdvance >= STALL_THRESHOLD) {
+            stalled = true;
+            PlaybackStats.bufferingStart(lastAdvance);
+            loading.setVisibility(View.VISIBLE);
+        }
+    }
+
     /**
      * 调整视频容器大小以自适应屏幕
      */
@@ -0,0 +1,470 @@
+package net.cloudseat.smbova;
+
+import android.media.MediaDataSource;
+
+import jcifs.smb.SmbRandomAccessFile;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SMB 媒体数据源
+ * 文件按固定大小分块，通过 SmbRandomAccessFile 按位置读取；读过的块保存在内存和
+ * 限定大小的磁盘缓存文件中。后台线程在当前读取位置之后预读若干块，
+ * 寻轨后预读从新位置开始，无需从文件开头重新读取。
+ * 打开时识别容器格式，先于其他预读读取 moov、Cues 等索引结构并常驻内存，
+ * 与播放器读取文件头同时进行
+ */
+class SambaMediaDataSource extends MediaDataSource {
+
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    public static final int DEFAULT_PREFETCH_BLOCKS = 16;
+    public static final long DEFAULT_DISK_BUDGET = 256 * 1024 * 1024;
+
+    // 内存中保留的块数
+    private static final int MEMORY_BLOCKS = 32;
+    // 常驻内存的索引结构最大字节数
+    private static final long MAX_PINNED_BYTES = 16 * 1024 * 1024;
+
+    private static int defaultBlockSize = DEFAULT_BLOCK_SIZE;
+    private static int defaultPrefetchBlocks = DEFAULT_PREFETCH_BLOCKS;
+    private static long defaultDiskBudget = DEFAULT_DISK_BUDGET;
+    private static boolean indexPreload = true;
+
+    private SambaFile file;
+    private long length;
+    private int blockSize;
+    private long blockCount;
+    private int prefetchBlocks;
+
+    // 播放器读取和后台预读各用一个文件句柄，互不等待
+    private SmbRandomAccessFile reader;
+    private SmbRandomAccessFile prefetcher;
+    private BlockCache cache;
+    private ExecutorService prefetchThread = Executors.newSingleThreadExecutor();
+
+    // 正在读取的块，其他线程等待其完成而不重复读取
+    private Set<Long> loading = new HashSet<Long>();
+    // 预读范围 [prefetchNext, prefetchEnd)
+    private long prefetchNext;
+    private long prefetchEnd;
+    private boolean prefetching;
+    private volatile boolean closed;
+
+    /**
+     * 设置新建数据源使用的参数
+     * @param int blockSize 块大小（字节）
+     * @param int prefetchBlocks 预读块数
+     * @param long diskBudget 磁盘缓存最大字节数
+     */
+    public static synchronized void configure(int blockSize, int prefetchBlocks, long diskBudget) {
+        defaultBlockSize = Math.max(blockSize, 16 * 1024);
+        defaultPrefetchBlocks = Math.max(prefetchBlocks, 0);
+        defaultDiskBudget = Math.max(diskBudget, 0);
+    }
+
+    /**
+     * 设置新建数据源是否预先读取容器索引，关闭后可对比准备和寻轨耗时
+     * @param boolean enabled
+     */
+    public static synchronized void setIndexPreload(boolean enabled) {
+        indexPreload = enabled;
+    }
+
+    /**
+     * 当前块大小
+     * @return int
+     */
+    public static synchronized int getDefaultBlockSize() {
+        return defaultBlockSize;
+    }
+
+    /**
+     * 当前预读块数
+     * @return int
+     */
+    public static synchronized int getDefaultPrefetchBlocks() {
+        return defaultPrefetchBlocks;
+    }
+
+    /**
+     * 当前磁盘缓存最大字节数
+     * @return long
+     */
+    public static synchronized long getDefaultDiskBudget() {
+        return defaultDiskBudget;
+    }
+
+    /**
+     * @param SambaFile file 媒体文件
+     * @param File cacheDir 磁盘缓存目录，关闭后删除缓存文件
+     */
+    public SambaMediaDataSource(SambaFile file, File cacheDir) throws IOException {
+        boolean preload;
+        synchronized (SambaMediaDataSource.class) {
+            this.blockSize = defaultBlockSize;
+            this.prefetchBlocks = defaultPrefetchBlocks;
+            preload = indexPreload;
+        }
+        this.file = file;
+        this.length = file.length();
+        PlaybackStats.start(length);
+        this.blockCount = (length + blockSize - 1) / blockSize;
+        try {
+            this.reader = new SmbRandomAccessFile(file, "r");
+            this.prefetcher = new SmbRandomAccessFile(file, "r");
+            this.cache = new BlockCache(cacheDir, defaultDiskBudget);
+        } catch (IOException | RuntimeException e) {
+            // 打开失败时不会调用 close()，释放已打开的句柄和预读线程
+            closeQuietly(reader);
+            closeQuietly(prefetcher);
+            prefetchThread.shutdown();
+            throw e;
+        }
+
+        if (!preload) return;
+        prefetchThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadIndex();
+            }
+        });
+    }
+
+    @Override
+    public long getSize() {
+        return length;
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (position >= length) return -1;
+        long begin = System.nanoTime();
+        boolean cached = true;
+        int count = 0;
+        while (count < size && position < length) {
+            long index = position / blockSize;
+            byte[] block = cache.get(index);
+            if (block == null) {
+                cached = false;
+                block = getBlock(reader, index);
+            }
+            int start = (int) (position - index * blockSize);
+            int n = Math.min(size - count, block.length - start);
+            System.arraycopy(block, start, buffer, offset + count, n);
+            count += n;
+            position += n;
+            prefetch(index + 1);
+        }
+        PlaybackStats.read(count, cached, System.nanoTime() - begin);
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        reader.close();
+        // 等待进行中的预读结束后再关闭预读句柄和缓存文件
+        prefetchThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prefetcher.close();
+                } catch (IOException e) {
+                    // 忽略关闭异常
+                }
+                cache.close();
+            }
+        });
+        prefetchThread.shutdown();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 获取块数据：先查缓存；其他线程正在读取时等待；否则立即从 SMB 读取
+     */
+    private byte[] getBlock(SmbRandomAccessFile raf, long index) throws IOException {
+        byte[] block = cache.get(index);
+        if (block != null) return block;
+
+        synchronized (this) {
+            try {
+                while (loading.contains(index)) wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Read interrupted");
+            }
+            block = cache.get(index);
+            if (block != null) return block;
+            loading.add(index);
+        }
+        try {
+            block = readBlock(raf, index);
+            cache.put(index, block);
+            return block;
+        } finally {
+            loaded(index);
+        }
+    }
+
+    private byte[] readBlock(SmbRandomAccessFile raf, long index) throws IOException {
+        long start = index * blockSize;
+        if (index < 0 || start >= length) throw new EOFException("Block " + index + " is beyond end of file");
+        byte[] block = new byte[(int) Math.min(blockSize, length - start)];
+        PlaybackStats.fetchStarted(System.nanoTime());
+        boolean done = false;
+        try {
+            file.readFully(raf, start, block);
+            done = true;
+        } finally {
+            PlaybackStats.fetchFinished(done ? block.length : 0, System.nanoTime());
+        }
+        return block;
+    }
+
+    private static void closeQuietly(SmbRandomAccessFile raf) {
+        if (raf == null) return;
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // 忽略关闭异常
+        }
+    }
+
+    private synchronized void loaded(long index) {
+        loading.remove(index);
+        notifyAll();
+    }
+
+    /**
+     * 在预读线程中读取容器索引结构并固定在缓存中
+     */
+    private void loadIndex() {
+        try {
+            List<long[]> ranges = MediaIndex.find(new MediaIndex.Reader() {
+                @Override
+                public byte[] read(long position, int size) throws IOException {
+                    return readRange(position, size);
+                }
+            }, length);
+            for (long[] range : ranges) {
+                long first = range[0] / blockSize;
+                long last = (range[0] + range[1] - 1) / blockSize;
+                for (long index = first; index <= last && !closed; index++) {
+                    if (!cache.pin(index, getBlock(prefetcher, index))) return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // 索引读取失败（含无法解析的损坏文件）不影响播放，由播放器按需读取
+        }
+    }
+
+    /**
+     * 经由缓存读取文件中的一段数据，用于解析容器结构
+     * 到达文件末尾时只返回已读取的部分
+     */
+    private byte[] readRange(long position, int size) throws IOException {
+        size = (int) Math.max(Math.min(size, length - position), 0);
+        byte[] buffer = new byte[size];
+        int count = 0;
+        while (count < size) {
+            if (closed) throw new IOException("Data source closed");
+            long index = (position + count) / blockSize;
+            byte[] block = getBlock(prefetcher, index);
+            int start = (int) (position + count - index * blockSize);
+            int n = Math.min(size - count, block.length - start);
+            if (n <= 0) return Arrays.copyOf(buffer, count);
+            System.arraycopy(block, start, buffer, count, n);
+            count += n;
+        }
+        return buffer;
+    }
+
+    /**
+     * 从指定块开始预读
+     * 读取位置跳出当前预读范围（寻轨）时，预读改为从新位置开始
+     */
+    private synchronized void prefetch(long next) {
+        if (closed || prefetchBlocks == 0) return;
+        if (next < prefetchNext || next > prefetchEnd) {
+            prefetchNext = next;
+        }
+        prefetchEnd = Math.min(next + prefetchBlocks, blockCount);
+        if (!prefetching && prefetchNext < prefetchEnd) {
+            prefetching = true;
+            prefetchThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    prefetchLoop();
+                }
+            });
+        }
+    }
+
+    private void prefetchLoop() {
+        while (true) {
+            long index;
+            synchronized (this) {
+                while (prefetchNext < prefetchEnd
+                    && (cache.contains(prefetchNext) || loading.contains(prefetchNext))) {
+                    prefetchNext++;
+                }
+                if (closed || prefetchNext >= prefetchEnd) {
+                    prefetching = false;
+                    return;
+                }
+                index = prefetchNext++;
+                loading.add(index);
+            }
+            try {
+                cache.put(index, readBlock(prefetcher, index));
+            } catch (IOException e) {
+                // 预读失败不影响播放，之后由播放器读取时重试
+                synchronized (this) {
+                    prefetching = false;
+                }
+                return;
+            } finally {
+                loaded(index);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 块缓存
+     * 内存中按 LRU 保留最近的块；所有块同时写入磁盘缓存文件，文件按块分为固定数量的槽位，
+     * 槽位用完时复用最久未访问的块的槽位，文件大小不超过上限。
+     * 固定的块（容器索引）单独保存在内存中，不参与淘汰
+     */
+    private class BlockCache {
+
+        private Map<Long, byte[]> pinned = new HashMap<Long, byte[]>();
+        private long pinnedBytes;
+        private LinkedHashMap<Long, byte[]> memory = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+        // 块索引 -> 槽位，按访问顺序排列
+        private LinkedHashMap<Long, Integer> slots = new LinkedHashMap<Long, Integer>(16, 0.75f, true);
+        private ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+        private File cacheFile;
+        private RandomAccessFile disk;
+
+        BlockCache(File cacheDir, long diskBudget) {
+            int maxSlots = (int) Math.min(diskBudget / blockSize, Integer.MAX_VALUE);
+            for (int i = 0; i < maxSlots; i++) {
+                freeSlots.add(i);
+            }
+            if (maxSlots == 0) return;
+            try {
+                cacheDir.mkdirs();
+                cacheFile = File.createTempFile("media", ".cache", cacheDir);
+                disk = new RandomAccessFile(cacheFile, "rw");
+            } catch (IOException e) {
+                // 无法创建缓存文件时只使用内存缓存
+                disk = null;
+            }
+        }
+
+        synchronized boolean contains(long index) {
+            return pinned.containsKey(index) || memory.containsKey(index) || slots.containsKey(index);
+        }
+
+        synchronized byte[] get(long index) {
+            byte[] block = pinned.get(index);
+            if (block != null) return block;
+            block = memory.get(index);
+            if (block != null) return block;
+
+            Integer slot = slots.get(index);
+            if (slot == null || disk == null) return null;
+            block = new byte[(int) Math.min(blockSize, length - index * blockSize)];
+            try {
+                disk.seek((long) slot * blockSize);
+                disk.readFully(block);
+            } catch (IOException e) {
+                slots.remove(index);
+                freeSlots.add(slot);
+                return null;
+            }
+            putMemory(index, block);
+            return block;
+        }
+
+        synchronized void put(long index, byte[] block) {
+            putMemory(index, block);
+            if (disk == null || slots.containsKey(index)) return;
+
+            Integer slot = freeSlots.poll();
+            if (slot == null) {
+                Iterator<Map.Entry<Long, Integer>> eldest = slots.entrySet().iterator();
+                if (!eldest.hasNext()) return;
+                slot = eldest.next().getValue();
+                eldest.remove();
+            }
+            try {
+                disk.seek((long) slot * blockSize);
+                disk.write(block);
+                slots.put(index, slot);
+            } catch (IOException e) {
+                freeSlots.add(slot);
+            }
+        }
+
+        /**
+         * 固定块，超出上限时返回 false
+         */
+        synchronized boolean pin(long index, byte[] block) {
+            if (pinned.containsKey(index)) return true;
+            if (pinnedBytes + block.length > MAX_PINNED_BYTES) return false;
+            pinned.put(index, block);
+            pinnedBytes += block.length;
+            memory.remove(index);
+            return true;
+        }
+
+        synchronized void close() {
+            pinned.clear();
+            memory.clear();
+            slots.clear();
+            if (disk != null) {
+                try {
+                    disk.close();
+                } catch (IOException e) {
+                    // 忽略关闭异常
+                }
+                cacheFile.delete();
+                disk = null;
+            }
+        }
+
+        private void putMemory(long index, byte[] block) {
+            memory.put(index, block);
+            if (memory.size() > MEMORY_BLOCKS) {
+                Iterator<Long> eldest = memory.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+}
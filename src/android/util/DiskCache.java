@@ -0,0 +1,250 @@
+package net.cloudseat.smbova;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class DiskCache {
+
+    private File directory;
+    private long maxSize;
+    private long size;
+
+    // 文件名 -> 文件大小，按访问顺序排列，最久未访问的在前
+    private LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /**
+     * 打开缓存目录，已有文件按修改时间恢复访问顺序
+     * @param directory 缓存目录
+     * @param maxSize 最大字节数
+     */
+    public DiskCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        directory.mkdirs();
+
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                // 上次写入未完成
+                file.delete();
+            } else {
+                entries.put(file.getName(), file.length());
+                size += file.length();
+            }
+        }
+        trim();
+    }
+
+    /**
+     * 修改最大字节数，超出的部分立即淘汰
+     * @param maxSize
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    /**
+     * 获取缓存文件
+     * @param key
+     * @return 不存在时返回 null
+     */
+    public synchronized File get(String key) {
+        String name = hash(key);
+        if (entries.get(name) == null) return null;
+        File file = new File(directory, name);
+        if (!file.exists()) {
+            // 被系统清理
+            size -= entries.remove(name);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * 写入缓存
+     * @param key
+     * @param data
+     * @return 缓存文件
+     */
+    public File put(String key, byte[] data) throws IOException {
+        File temp = createTemp();
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return commit(key, temp);
+    }
+
+    /**
+     * 将流的全部内容写入缓存
+     * @param key
+     * @param in 调用方负责关闭
+     * @return 缓存文件
+     */
+    public File put(String key, InputStream in) throws IOException {
+        File temp = createTemp();
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            byte[] b = new byte[64 * 1024];
+            int len;
+            while ((len = in.read(b)) > 0) {
+                out.write(b, 0, len);
+            }
+        } catch (IOException e) {
+            out.close();
+            temp.delete();
+            throw e;
+        } finally {
+            out.close();
+        }
+        return commit(key, temp);
+    }
+
+    /**
+     * 开始边读边写入缓存，写完后调用 commit()，失败时调用 abort()
+     * @param key
+     * @return
+     */
+    public Editor edit(String key) throws IOException {
+        return new Editor(key, createTemp());
+    }
+
+    /**
+     * 删除缓存
+     * @param key
+     */
+    public synchronized void remove(String key) {
+        String name = hash(key);
+        Long length = entries.remove(name);
+        if (length != null) {
+            size -= length;
+            new File(directory, name).delete();
+        }
+    }
+
+    /**
+     * 当前占用的字节数
+     * @return
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private File createTemp() throws IOException {
+        directory.mkdirs();
+        return File.createTempFile("entry", ".tmp", directory);
+    }
+
+    /**
+     * 将写好的临时文件重命名为缓存文件，避免读到写了一半的文件
+     */
+    private synchronized File commit(String key, File temp) throws IOException {
+        String name = hash(key);
+        File file = new File(directory, name);
+        Long old = entries.remove(name);
+        if (old != null) size -= old;
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot write cache file: " + file);
+        }
+        entries.put(name, file.length());
+        size += file.length();
+        trim();
+        return file;
+    }
+
+    /**
+     * 淘汰最久未访问的文件直到不超过最大字节数（刚写入的文件最后淘汰）
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && entries.size() > 1 && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            new File(directory, entry.getKey()).delete();
+            size -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest = md5.digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 内部类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 写入中的缓存文件，提交前不会被读到
+     */
+    public class Editor extends FileOutputStream {
+
+        private String key;
+        private File temp;
+
+        Editor(String key, File temp) throws IOException {
+            super(temp);
+            this.key = key;
+            this.temp = temp;
+        }
+
+        /**
+         * 提交写入的内容
+         * @return 缓存文件
+         */
+        public File commit() throws IOException {
+            close();
+            return DiskCache.this.commit(key, temp);
+        }
+
+        /**
+         * 放弃写入的内容
+         */
+        public void abort() {
+            try {
+                close();
+            } catch (IOException e) {
+                // 忽略关闭异常
+            }
+            temp.delete();
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+package net.cloudseat.smbova;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class ExifThumbnail {
+
+    // APP1 段最大 64KB，缩略图必须位于其中
+    private static final int MAX_SEGMENT = 64 * 1024;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    private byte[] thumbnail;
+    private int orientation = 1;
+    private int headerLength;
+
+    private ExifThumbnail() {
+    }
+
+    /**
+     * 读取 JPEG 文件头中的 EXIF 信息
+     * 只读取 SOI 到 APP1（EXIF）段为止的字节，不读取图像数据
+     * @param in JPEG 文件流，调用方负责关闭
+     * @return 不是 JPEG 或没有 EXIF 段时返回 null
+     */
+    public static ExifThumbnail read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            if (data.readUnsignedShort() != 0xFFD8) return null;
+            int position = 2;
+            while (true) {
+                int marker = data.readUnsignedShort();
+                int length = data.readUnsignedShort();
+                position += 4;
+                // 图像数据开始，或不是合法的段
+                if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || length < 2) return null;
+
+                byte[] segment = new byte[length - 2];
+                data.readFully(segment);
+                position += segment.length;
+                if (marker == 0xFFE1 && isExif(segment)) {
+                    ExifThumbnail exif = new ExifThumbnail();
+                    exif.parse(segment);
+                    exif.headerLength = position;
+                    return exif;
+                }
+                // EXIF 只会出现在文件开头的 APPn 段中
+                if (marker < 0xFFE0 || marker > 0xFFEF || position > MAX_SEGMENT * 2) return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 内嵌的 JPEG 缩略图
+     * @return 没有缩略图时返回 null
+     */
+    public byte[] getThumbnail() {
+        return thumbnail;
+    }
+
+    /**
+     * EXIF 方向（1-8），缺省为 1
+     * @return
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * 读取到 EXIF 段结束为止的字节数
+     * @return
+     */
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    /**
+     * EXIF 方向对应的顺时针旋转角度
+     * @return 0、90、180 或 270
+     */
+    public int getRotation() {
+        switch (orientation) {
+            case 3: case 4: return 180;
+            case 5: case 6: return 90;
+            case 7: case 8: return 270;
+            default: return 0;
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private static boolean isExif(byte[] segment) {
+        return segment.length > 14
+            && segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f'
+            && segment[4] == 0 && segment[5] == 0;
+    }
+
+    /**
+     * 解析 TIFF 结构：IFD0 中取方向，IFD1 中取缩略图偏移和长度
+     */
+    private void parse(byte[] segment) {
+        Tiff tiff = new Tiff(segment, 6);
+        if (!tiff.valid()) return;
+
+        int ifd0 = tiff.int32(4);
+        int count = tiff.int16(ifd0);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd0 + 2 + i * 12;
+            if (tiff.int16(entry) == TAG_ORIENTATION) {
+                orientation = tiff.int16(entry + 8);
+            }
+        }
+
+        int ifd1 = tiff.int32(ifd0 + 2 + count * 12);
+        if (ifd1 <= 0) return;
+        int offset = -1;
+        int length = -1;
+        count = tiff.int16(ifd1);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd1 + 2 + i * 12;
+            int tag = tiff.int16(entry);
+            if (tag == TAG_THUMBNAIL_OFFSET) offset = tiff.int32(entry + 8);
+            if (tag == TAG_THUMBNAIL_LENGTH) length = tiff.int32(entry + 8);
+        }
+        if (offset > 0 && length > 0 && tiff.contains(offset, length)) {
+            thumbnail = new byte[length];
+            System.arraycopy(segment, 6 + offset, thumbnail, 0, length);
+        }
+    }
+
+    /**
+     * TIFF 数据读取，偏移越界时返回 -1
+     */
+    private static class Tiff {
+        private byte[] bytes;
+        private int base;
+        private boolean littleEndian;
+
+        Tiff(byte[] bytes, int base) {
+            this.bytes = bytes;
+            this.base = base;
+            this.littleEndian = bytes[base] == 'I';
+        }
+
+        boolean valid() {
+            return (bytes[base] == 'I' && bytes[base + 1] == 'I') || (bytes[base] == 'M' && bytes[base + 1] == 'M');
+        }
+
+        boolean contains(int offset, int length) {
+            return offset >= 0 && length >= 0 && base + offset + length <= bytes.length;
+        }
+
+        int int16(int offset) {
+            if (!contains(offset, 2)) return -1;
+            int b0 = bytes[base + offset] & 0xFF;
+            int b1 = bytes[base + offset + 1] & 0xFF;
+            return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+        }
+
+        int int32(int offset) {
+            if (!contains(offset, 4)) return -1;
+            int hi = int16(littleEndian ? offset + 2 : offset);
+            int lo = int16(littleEndian ? offset : offset + 2);
+            return (hi << 16) | lo;
+        }
+    }
+
+}
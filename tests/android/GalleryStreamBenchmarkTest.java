@@ -0,0 +1,297 @@
+package net.cloudseat.smbova;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+/**
+ * 图片加载路径对比：读入 byte[] 后解码 与 经 StreamPipe 边读取边解码
+ * 用限速的替身数据流模拟 SMB 读取，解码方先只解析文件头得到尺寸（相当于 inJustDecodeBounds），
+ * 再读完剩余数据。记录两条路径拿到尺寸的耗时（解码开始出像素的前提）和堆内存高水位
+ */
+public class GalleryStreamBenchmarkTest {
+
+    // 8MB 的替身 JPEG，按 64KB 一块、每块 2ms 到达
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long CHUNK_DELAY = 2;
+    private static final int PIPE_SIZE = 1024 * 1024;
+
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+
+    @Test
+    public void streamPathDecodesHeaderBeforeLastByteWithBoundedHeap() throws Exception {
+        byte[] fixture = jpeg(FILE_SIZE, WIDTH, HEIGHT);
+
+        Result bytes = measure(new Path() {
+            @Override
+            public Decoded run(byte[] fixture) throws Exception {
+                return byteArrayPath(fixture);
+            }
+        }, fixture);
+        Result stream = measure(new Path() {
+            @Override
+            public Decoded run(byte[] fixture) throws Exception {
+                return pipePath(fixture);
+            }
+        }, fixture);
+
+        System.out.println("byte[] path: header after " + bytes.headerMillis + "ms, done after "
+            + bytes.totalMillis + "ms, heap high-water +" + bytes.heapKB + "KB");
+        System.out.println("stream path: header after " + stream.headerMillis + "ms, done after "
+            + stream.totalMillis + "ms, heap high-water +" + stream.heapKB + "KB");
+
+        // 两条路径解码出同样的尺寸并读到全部数据
+        assertArrayEquals(new int[] { WIDTH, HEIGHT }, bytes.decoded.size);
+        assertArrayEquals(new int[] { WIDTH, HEIGHT }, stream.decoded.size);
+        assertEquals(FILE_SIZE, bytes.decoded.length);
+        assertEquals(FILE_SIZE, stream.decoded.length);
+
+        // byte[] 路径要等整个文件到达才开始解码，流式路径在第一块到达后即可
+        assertTrue(stream.headerMillis * 4 < bytes.headerMillis);
+        // byte[] 路径至少持有整个文件，流式路径只持有管道和读写缓冲区
+        assertTrue(bytes.heapKB >= FILE_SIZE / 1024);
+        assertTrue(stream.heapKB < bytes.heapKB / 2);
+    }
+
+    ///////////////////////////////////////////////////////
+    // 两条加载路径
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 原来的路径：像 readAsByteArray 一样先读入整个文件，再从内存解码
+     */
+    private static Decoded byteArrayPath(byte[] fixture) throws IOException {
+        InputStream in = new SlowStream(fixture);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[CHUNK_SIZE];
+        int n;
+        while ((n = in.read(b)) > 0) out.write(b, 0, n);
+        return decode(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    /**
+     * 流式路径：读取线程写入管道，解码线程同时读取
+     */
+    private static Decoded pipePath(byte[] fixture) throws Exception {
+        StreamPipe pipe = new StreamPipe(PIPE_SIZE);
+        Decoded[] decoded = new Decoded[1];
+        Exception[] error = new Exception[1];
+        Thread decoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    decoded[0] = decode(pipe.source());
+                } catch (Exception e) {
+                    error[0] = e;
+                } finally {
+                    try {
+                        pipe.source().close();
+                    } catch (IOException e) {
+                        // 忽略关闭异常
+                    }
+                }
+            }
+        });
+        decoder.start();
+
+        InputStream in = new SlowStream(fixture);
+        OutputStream sink = pipe.sink();
+        byte[] b = new byte[CHUNK_SIZE];
+        int n;
+        while ((n = in.read(b)) > 0) sink.write(b, 0, n);
+        sink.close();
+
+        decoder.join();
+        if (error[0] != null) throw error[0];
+        return decoded[0];
+    }
+
+    /**
+     * 解码替身：先解析标记段找到 SOF 得到尺寸，记录时间，再读完熵编码数据
+     */
+    private static Decoded decode(InputStream in) throws IOException {
+        Decoded decoded = new Decoded();
+        byte[] header = new byte[4];
+        readFully(in, header, 2);
+        decoded.length = 2;
+        while (decoded.size == null) {
+            readFully(in, header, 4);
+            int marker = header[1] & 0xFF;
+            int length = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            byte[] segment = new byte[length - 2];
+            readFully(in, segment, segment.length);
+            decoded.length += 2 + length;
+            if (marker == 0xC0) {
+                int height = ((segment[1] & 0xFF) << 8) | (segment[2] & 0xFF);
+                int width = ((segment[3] & 0xFF) << 8) | (segment[4] & 0xFF);
+                decoded.size = new int[] { width, height };
+                decoded.headerTime = System.nanoTime();
+            }
+        }
+        byte[] b = new byte[CHUNK_SIZE];
+        int n;
+        while ((n = in.read(b)) > 0) decoded.length += n;
+        return decoded;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 测量
+    ///////////////////////////////////////////////////////
+
+    private static Result measure(Path path, byte[] fixture) throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long baseline = runtime.totalMemory() - runtime.freeMemory();
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+
+        long start = System.nanoTime();
+        Decoded decoded = path.run(fixture);
+        long end = System.nanoTime();
+        sampler.finish();
+
+        Result result = new Result();
+        result.decoded = decoded;
+        result.headerMillis = (decoded.headerTime - start) / 1000000;
+        result.totalMillis = (end - start) / 1000000;
+        result.heapKB = Math.max(sampler.highWater - baseline, 0) / 1024;
+        return result;
+    }
+
+    /**
+     * 每毫秒采样一次已用堆内存，记录最大值
+     */
+    private static class HeapSampler extends Thread {
+        volatile boolean running = true;
+        volatile long highWater;
+
+        HeapSampler() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (running) {
+                highWater = Math.max(highWater, runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void finish() throws InterruptedException {
+            Runtime runtime = Runtime.getRuntime();
+            highWater = Math.max(highWater, runtime.totalMemory() - runtime.freeMemory());
+            running = false;
+            join();
+        }
+    }
+
+    private interface Path {
+        Decoded run(byte[] fixture) throws Exception;
+    }
+
+    private static class Decoded {
+        int[] size;
+        long length;
+        long headerTime;
+    }
+
+    private static class Result {
+        Decoded decoded;
+        long headerMillis;
+        long totalMillis;
+        long heapKB;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 替身数据
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 限速数据流：每次最多返回一块，每块延迟固定时间，模拟 SMB 读取
+     */
+    private static class SlowStream extends InputStream {
+        private byte[] data;
+        private int position;
+
+        SlowStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= data.length) return -1;
+            try {
+                Thread.sleep(CHUNK_DELAY);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            int n = Math.min(Math.min(len, CHUNK_SIZE), data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+
+    /**
+     * 替身 JPEG：SOI、APP0、SOF0（带尺寸），其后以填充数据作为熵编码数据
+     */
+    private static byte[] jpeg(int size, int width, int height) {
+        byte[] data = new byte[size];
+        int i = 0;
+        data[i++] = (byte) 0xFF;
+        data[i++] = (byte) 0xD8;
+        // APP0，长度 16
+        data[i++] = (byte) 0xFF;
+        data[i++] = (byte) 0xE0;
+        data[i++] = 0;
+        data[i++] = 16;
+        i += 14;
+        // SOF0，长度 11：精度、高、宽、1 个分量
+        data[i++] = (byte) 0xFF;
+        data[i++] = (byte) 0xC0;
+        data[i++] = 0;
+        data[i++] = 11;
+        data[i++] = 8;
+        data[i++] = (byte) (height >> 8);
+        data[i++] = (byte) height;
+        data[i++] = (byte) (width >> 8);
+        data[i++] = (byte) width;
+        data[i++] = 1;
+        i += 3;
+        for (; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        int count = 0;
+        while (count < len) {
+            int n = in.read(b, count, len - count);
+            if (n < 0) throw new IOException("Unexpected end of stream");
+            count += n;
+        }
+    }
+
+}
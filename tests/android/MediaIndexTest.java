@@ -0,0 +1,201 @@
+package net.cloudseat.smbova;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * 容器索引定位测试
+ * 用内存中的替身文件代替 SMB 文件，读取超出文件末尾或长度不为正时直接失败，
+ * 验证完整文件能找到索引，截断的文件不会越界读取
+ */
+public class MediaIndexTest {
+
+    private static final long SEGMENT = 0x18538067L;
+    private static final long SEEK_HEAD = 0x114D9B74L;
+    private static final long SEEK = 0x4DBBL;
+    private static final long SEEK_ID = 0x53ABL;
+    private static final long SEEK_POSITION = 0x53ACL;
+    private static final long CUES = 0x1C53BB6BL;
+    private static final long CLUSTER = 0x1F43B675L;
+
+    @Test
+    public void findsCuesAtEndThroughSeekHead() throws Exception {
+        Mkv mkv = new Mkv(1000);
+        StrictReader reader = new StrictReader(mkv.bytes);
+
+        List<long[]> ranges = MediaIndex.find(reader, mkv.bytes.length);
+
+        assertEquals(2, ranges.size());
+        assertArrayEquals(new long[] { mkv.seekHead, mkv.cluster - mkv.seekHead }, ranges.get(0));
+        assertArrayEquals(new long[] { mkv.cues, mkv.bytes.length - mkv.cues }, ranges.get(1));
+    }
+
+    @Test
+    public void readsTruncatedSeekHeadOnlyToEndOfFile() throws Exception {
+        Mkv mkv = new Mkv(1000);
+        // 截断在 SeekHead 数据中间：声明的长度超出文件末尾
+        byte[] truncated = Arrays.copyOf(mkv.bytes, (int) mkv.seekHeadData + 5);
+        StrictReader reader = new StrictReader(truncated);
+
+        List<long[]> ranges = MediaIndex.find(reader, truncated.length);
+
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { mkv.seekHead, truncated.length - mkv.seekHead }, ranges.get(0));
+    }
+
+    @Test
+    public void skipsSeekHeadWithNoDataBeforeEndOfFile() throws Exception {
+        Mkv mkv = new Mkv(1000);
+        byte[] truncated = Arrays.copyOf(mkv.bytes, (int) mkv.seekHeadData);
+        StrictReader reader = new StrictReader(truncated);
+
+        List<long[]> ranges = MediaIndex.find(reader, truncated.length);
+
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { mkv.seekHead, truncated.length - mkv.seekHead }, ranges.get(0));
+    }
+
+    @Test
+    public void ignoresCuesPositionBeyondEndOfFile() throws Exception {
+        Mkv mkv = new Mkv(1000);
+        // 截断在 Cues 之前，SeekHead 仍指向原来的位置
+        byte[] truncated = Arrays.copyOf(mkv.bytes, (int) mkv.cluster + 4);
+        StrictReader reader = new StrictReader(truncated);
+
+        List<long[]> ranges = MediaIndex.find(reader, truncated.length);
+
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { mkv.seekHead, mkv.cluster - mkv.seekHead }, ranges.get(0));
+    }
+
+    @Test
+    public void stopsWhenSegmentStartsAtEndOfFile() throws Exception {
+        Mkv mkv = new Mkv(1000);
+        byte[] truncated = Arrays.copyOf(mkv.bytes, (int) mkv.segment);
+        StrictReader reader = new StrictReader(truncated);
+
+        assertTrue(MediaIndex.find(reader, truncated.length).isEmpty());
+    }
+
+    @Test
+    public void clampsTruncatedMoovToEndOfFile() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        box(out, "ftyp", new byte[8]);
+        box(out, "mdat", new byte[4096]);
+        int moov = out.size();
+        box(out, "moov", new byte[2048]);
+        byte[] file = Arrays.copyOf(out.toByteArray(), moov + 100);
+        StrictReader reader = new StrictReader(file);
+
+        List<long[]> ranges = MediaIndex.find(reader, file.length);
+
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { moov, 100 }, ranges.get(0));
+        // 只读取各顶层 box 的头部
+        assertEquals(4, reader.reads);
+    }
+
+    ///////////////////////////////////////////////////////
+    // 替身文件
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 按位置读取内存中的文件，超出文件末尾或长度不为正时失败
+     */
+    private static class StrictReader implements MediaIndex.Reader {
+        private byte[] data;
+        int reads;
+
+        StrictReader(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public byte[] read(long position, int size) throws IOException {
+            reads++;
+            assertTrue("read at " + position + " size " + size, size > 0);
+            assertTrue("read at " + position + " size " + size, position >= 0 && position + size <= data.length);
+            return Arrays.copyOfRange(data, (int) position, (int) position + size);
+        }
+    }
+
+    /**
+     * 替身 MKV：EBML 头、Segment、指向 Cues 的 SeekHead、Cluster，Cues 在文件末尾
+     */
+    private static class Mkv {
+        final byte[] bytes;
+        final long segment;
+        final long seekHead;
+        final long seekHeadData;
+        final long cluster;
+        final long cues;
+
+        Mkv(int clusterSize) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            element(out, 0x1A45DFA3L, new byte[4]);
+            segment = out.size();
+            // Segment 长度未知
+            id(out, SEGMENT);
+            out.write(0xFF);
+            long base = out.size();
+
+            // SeekHead 头 6 字节、Seek 17 字节，Cluster 头 8 字节
+            int cueOffset = 6 + 17 + 8 + clusterSize;
+            ByteArrayOutputStream seek = new ByteArrayOutputStream();
+            element(seek, SEEK_ID, new byte[] { 0x1C, 0x53, (byte) 0xBB, 0x6B });
+            element(seek, SEEK_POSITION, new byte[] { 0, 0, (byte) (cueOffset >> 8), (byte) cueOffset });
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            element(head, SEEK, seek.toByteArray());
+
+            seekHead = out.size();
+            id(out, SEEK_HEAD);
+            // 两字节长度，与实际文件一样
+            out.write(0x40);
+            out.write(head.size());
+            seekHeadData = out.size();
+            out.write(head.toByteArray());
+
+            cluster = out.size();
+            id(out, CLUSTER);
+            out.write(0x10);
+            out.write(0);
+            out.write(clusterSize >> 8);
+            out.write(clusterSize & 0xFF);
+            out.write(new byte[clusterSize]);
+
+            cues = out.size();
+            assertEquals(base + cueOffset, cues);
+            element(out, CUES, new byte[64]);
+            bytes = out.toByteArray();
+        }
+    }
+
+    private static void element(ByteArrayOutputStream out, long id, byte[] data) throws IOException {
+        id(out, id);
+        out.write(0x80 | data.length);
+        out.write(data);
+    }
+
+    private static void id(ByteArrayOutputStream out, long id) {
+        int length = id > 0xFFFFFF ? 4 : id > 0xFFFF ? 3 : id > 0xFF ? 2 : 1;
+        for (int i = length - 1; i >= 0; i--) {
+            out.write((int) (id >> (8 * i)) & 0xFF);
+        }
+    }
+
+    private static void box(ByteArrayOutputStream out, String type, byte[] data) throws IOException {
+        int size = 8 + data.length;
+        out.write(new byte[] { (byte) (size >> 24), (byte) (size >> 16), (byte) (size >> 8), (byte) size });
+        out.write(type.getBytes("US-ASCII"));
+        out.write(data);
+    }
+
+}
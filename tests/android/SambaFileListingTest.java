@@ -0,0 +1,239 @@
+package net.cloudseat.smbova;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileFilter;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * listEntries 请求数测试
+ * 用内存中的替身目录代替 SMB 服务器：目录枚举和每个会发起 SMB 请求的查询都计数，
+ * 验证列目录只发起一次枚举，不再单独查询目录是否存在及各条目属性；
+ * 条目属性的每次读取也计数，验证属性取自枚举得到的对象，而不是按路径重建的对象
+ */
+public class SambaFileListingTest {
+
+    private static final String DIR = "smb://10.0.0.2/share/photos/";
+
+    private Counter counter;
+
+    @Before
+    public void setUp() {
+        // 重建目录缓存，各测试互不影响
+        ListingCache.configure(ListingCache.DEFAULT_MAX_SIZE, ListingCache.DEFAULT_TTL);
+        counter = new Counter();
+    }
+
+    @Test
+    public void listsWithOneEnumeration() throws Exception {
+        FakeDirectory dir = new FakeDirectory(DIR, counter, null,
+            new FakeEntry(DIR + "b.jpg", counter, SmbFile.TYPE_FILESYSTEM, 0, 2048, 1000L),
+            new FakeEntry(DIR + "album/", counter, SmbFile.TYPE_FILESYSTEM, SmbFile.ATTR_DIRECTORY, 0, 2000L),
+            new FakeEntry(DIR + "a.mp4", counter, SmbFile.TYPE_FILESYSTEM, 0, 4096, 3000L));
+
+        JSONArray entries = dir.listEntries();
+
+        assertEquals(1, counter.enumerations);
+        assertEquals(0, counter.queries);
+        // 每个条目读取类型、属性、大小、时间各一次
+        assertEquals(3 * 4, counter.attributeReads);
+        assertEquals(3, entries.length());
+        // 文件夹在前
+        JSONObject first = entries.getJSONObject(0);
+        assertEquals("album", first.getString("name"));
+        assertEquals(SmbFile.TYPE_FILESYSTEM, first.getInt("type"));
+        JSONObject file = entries.getJSONObject(1);
+        assertEquals("a.mp4", file.getString("name"));
+        assertEquals(0, file.getInt("type"));
+        assertEquals(4096, file.getLong("size"));
+        assertEquals(3000L, file.getLong("lastModified"));
+    }
+
+    @Test
+    public void servesRepeatedListingFromCache() throws Exception {
+        FakeDirectory dir = new FakeDirectory(DIR, counter, null,
+            new FakeEntry(DIR + "a.jpg", counter, SmbFile.TYPE_FILESYSTEM, 0, 1, 1L));
+
+        dir.listEntries();
+        dir.listEntries();
+        assertEquals(1, counter.enumerations);
+
+        assertEquals(4, counter.attributeReads);
+
+        dir.listEntries(true, null);
+        assertEquals(2, counter.enumerations);
+        assertEquals(0, counter.queries);
+        assertEquals(8, counter.attributeReads);
+    }
+
+    @Test
+    public void skipsHiddenSharesWithoutQueryingSize() throws Exception {
+        String server = "smb://10.0.0.2/";
+        FakeDirectory dir = new FakeDirectory(server, counter, null,
+            new FakeEntry(server + "share/", counter, SmbFile.TYPE_SHARE, 0, 0, 0L),
+            new FakeEntry(server + "IPC$/", counter, SmbFile.TYPE_SHARE, 0, 0, 0L));
+
+        JSONArray entries = dir.listEntries();
+
+        assertEquals(1, entries.length());
+        assertEquals("share", entries.getJSONObject(0).getString("name"));
+        assertEquals(1, counter.enumerations);
+        assertEquals(0, counter.queries);
+        // 共享只读取类型，不读取大小和时间
+        assertEquals(2, counter.attributeReads);
+    }
+
+    @Test
+    public void returnsNullForFileWithoutExtraQuery() throws Exception {
+        FakeDirectory file = new FakeDirectory(DIR + "a.jpg/", counter,
+            new SmbException(SmbException.NT_STATUS_NOT_A_DIRECTORY, false));
+
+        assertNull(file.listEntries());
+        assertEquals(1, counter.enumerations);
+        assertEquals(0, counter.queries);
+    }
+
+    ///////////////////////////////////////////////////////
+    // 替身服务器
+    ///////////////////////////////////////////////////////
+
+    /**
+     * SMB 请求计数
+     */
+    private static class Counter {
+        int enumerations;
+        int queries;
+        // 从枚举得到的条目读取属性的次数
+        int attributeReads;
+    }
+
+    /**
+     * 替身目录：枚举时依次交给过滤器，其余会访问服务器的查询只计数
+     */
+    private static class FakeDirectory extends SambaFile {
+
+        private Counter counter;
+        private SmbException error;
+        private SmbFile[] children;
+
+        FakeDirectory(String path, Counter counter, SmbException error, SmbFile... children)
+            throws MalformedURLException {
+            super(path);
+            this.counter = counter;
+            this.error = error;
+            this.children = children;
+        }
+
+        @Override
+        public SmbFile[] listFiles(SmbFileFilter filter) throws SmbException {
+            counter.enumerations++;
+            if (error != null) throw error;
+            List<SmbFile> accepted = new ArrayList<SmbFile>();
+            for (SmbFile child : children) {
+                if (filter == null || filter.accept(child)) accepted.add(child);
+            }
+            return accepted.toArray(new SmbFile[accepted.size()]);
+        }
+
+        @Override
+        public boolean exists() throws SmbException {
+            counter.queries++;
+            return true;
+        }
+
+        @Override
+        public boolean isDirectory() throws SmbException {
+            counter.queries++;
+            return true;
+        }
+
+        @Override
+        public int getAttributes() throws SmbException {
+            counter.queries++;
+            return ATTR_DIRECTORY;
+        }
+    }
+
+    /**
+     * 替身条目：类型、属性、大小和时间与 jcifs 一样取自枚举响应，读取次数单独计数；
+     * 需要单独请求的查询计入 queries
+     */
+    private static class FakeEntry extends SmbFile {
+
+        private Counter counter;
+        private int type;
+        private int attributes;
+        private long length;
+        private long lastModified;
+
+        FakeEntry(String path, Counter counter, int type, int attributes, long length, long lastModified)
+            throws MalformedURLException {
+            super(path);
+            this.counter = counter;
+            this.type = type;
+            this.attributes = attributes;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public int getType() {
+            counter.attributeReads++;
+            return type;
+        }
+
+        @Override
+        public int getAttributes() {
+            counter.attributeReads++;
+            return attributes;
+        }
+
+        @Override
+        public long length() {
+            counter.attributeReads++;
+            return length;
+        }
+
+        @Override
+        public long lastModified() {
+            counter.attributeReads++;
+            return lastModified;
+        }
+
+        @Override
+        public boolean exists() throws SmbException {
+            counter.queries++;
+            return true;
+        }
+
+        @Override
+        public boolean isDirectory() throws SmbException {
+            counter.queries++;
+            return (attributes & ATTR_DIRECTORY) != 0;
+        }
+
+        @Override
+        public boolean isFile() throws SmbException {
+            counter.queries++;
+            return (attributes & ATTR_DIRECTORY) == 0;
+        }
+
+        @Override
+        public long getDiskFreeSpace() throws SmbException {
+            counter.queries++;
+            return 0;
+        }
+    }
+
+}
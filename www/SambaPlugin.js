@@ -1,4 +1,32 @@
 const exec = require('cordova/exec')
+const channel = require('cordova/channel')
+
+// 所有传输的进度和状态事件经由同一个原生回调推送，插件加载时注册，
+// 恢复的任务和其他页面发起的传输的事件也不会丢失
+channel.onCordovaReady.subscribe(() => {
+  exec(event => {
+    if (event.state) {
+      if (module.exports.onTransfer) module.exports.onTransfer(event)
+    } else {
+      if (module.exports.onProgress) module.exports.onProgress(event.progress, event)
+    }
+  }, null, 'SambaPlugin', 'progressChannel', null)
+})
+
+// 队列传输：原生端先推送任务状态（含编号），结束时再回调结果
+function transfer(action, args, success, error) {
+  const handle = {}
+  exec(result => {
+    if (result && typeof result === 'object' && result.state) {
+      handle.id = result.id
+      if (handle.onQueued) handle.onQueued(result)
+    } else {
+      if (success) success(result)
+    }
+  }, error, 'SambaPlugin', action, args)
+  return handle
+}
+
 module.exports = {
 
   runBackground(success, error) {
@@ -9,8 +37,16 @@ module.exports = {
     exec(success, error, 'SambaPlugin', 'auth', [ username, password ])
   },
 
-  listEntries(path, success, error) {
-    exec(success, error, 'SambaPlugin', 'listEntries', [ path ])
+  configure(options, success, error) {
+    exec(success, error, 'SambaPlugin', 'configure', [ options ])
+  },
+
+  listEntries(path, success, error, options) {
+    exec(success, error, 'SambaPlugin', 'listEntries', [ path, options || {} ])
+  },
+
+  listEntriesPaged(path, onPage, error, options) {
+    exec(page => onPage(page.entries, page.done), error, 'SambaPlugin', 'listEntriesPaged', [ path, options || {} ])
   },
 
   readAsText(path, success, error) {
@@ -21,10 +57,49 @@ module.exports = {
     exec(success, error, 'SambaPlugin', 'readAsByteArray', [ path ])
   },
 
+  readAsStream(path, onChunk, success, error, options) {
+    const stream = {
+      cancel() {
+        exec(null, null, 'SambaPlugin', 'cancelStream', [ stream.id ])
+      }
+    }
+    exec(result => {
+      if (result instanceof ArrayBuffer) {
+        // 回调返回 Promise 时等待其完成再确认，以此控制原生端推送速度
+        const ack = () => exec(null, null, 'SambaPlugin', 'ackStream', [ stream.id ])
+        const pending = onChunk(result, stream)
+        if (pending && typeof pending.then === 'function') {
+          pending.then(ack, stream.cancel)
+        } else {
+          ack()
+        }
+      } else if (result.done) {
+        if (success) success(result)
+      } else {
+        stream.id = result.id
+        stream.size = result.size
+      }
+    }, error, 'SambaPlugin', 'readAsStream', [ path, options || {} ])
+  },
+
   openImage(path, success, error) {
     exec(success, error, 'SambaPlugin', 'openImage', [ path ])
   },
 
+  thumbnail(path, maxSize, success, error, options) {
+    exec(success, error, 'SambaPlugin', 'thumbnail', [ path, maxSize || 160, options || {} ])
+  },
+
+  thumbnails(dirPath, maxSize, onThumbnail, success, error, options) {
+    exec(result => {
+      if (result.done) {
+        if (success) success(result)
+      } else {
+        onThumbnail(result)
+      }
+    }, error, 'SambaPlugin', 'thumbnails', [ dirPath, maxSize || 160, options || {} ])
+  },
+
   openMedia(path, success, error) {
     exec(success, error, 'SambaPlugin', 'openMedia', [ path ])
   },
@@ -33,12 +108,44 @@ module.exports = {
     exec(success, error, 'SambaPlugin', 'openFile', [ path ])
   },
 
-  upload(localPath, smbPath, success, error) {
-    exec(success, error, 'SambaPlugin', 'upload', [ localPath, smbPath ])
+  upload(localPath, smbPath, success, error, options) {
+    return transfer('upload', [ localPath, smbPath, options || {} ], success, error)
+  },
+
+  download(smbPath, success, error, options) {
+    return transfer('download', [ smbPath, options || {} ], success, error)
+  },
+
+  downloadTree(smbPath, success, error, options) {
+    exec(success, error, 'SambaPlugin', 'downloadTree', [ smbPath, options || {} ])
+  },
+
+  uploadTree(localPath, smbPath, success, error, options) {
+    exec(success, error, 'SambaPlugin', 'uploadTree', [ localPath, smbPath, options || {} ])
+  },
+
+  resume(id, success, error, options) {
+    return transfer('resume', [ id, options || {} ], success, error)
+  },
+
+  pendingTransfers(success, error) {
+    exec(success, error, 'SambaPlugin', 'pendingTransfers', null)
+  },
+
+  pauseTransfer(id, success, error) {
+    exec(success, error, 'SambaPlugin', 'pauseTransfer', [ id ])
+  },
+
+  cancelTransfer(id, success, error) {
+    exec(success, error, 'SambaPlugin', 'cancelTransfer', [ id ])
+  },
+
+  prioritizeTransfer(id, priority, success, error) {
+    exec(success, error, 'SambaPlugin', 'prioritizeTransfer', [ id, priority ])
   },
 
-  download(smbPath, success, error) {
-    exec(success, error, 'SambaPlugin', 'download', [ smbPath ])
+  listTransfers(success, error) {
+    exec(success, error, 'SambaPlugin', 'listTransfers', null)
   },
 
   createFile(path, success, error) {
@@ -49,12 +156,50 @@ module.exports = {
     exec(success, error, 'SambaPlugin', 'createDirectory', [ path ])
   },
 
-  delete(path, success, error) {
-    exec(success, error, 'SambaPlugin', 'delete', [ path ])
+  delete(path, success, error, options) {
+    exec(success, error, 'SambaPlugin', 'delete', [ path, options || {} ])
   },
 
   wakeOnLan(mac, port, success, error) {
     exec(success, error, 'SambaPlugin', 'wakeOnLan', [ mac, port ])
+  },
+
+  startServer(success, error) {
+    exec(baseUrl => {
+      module.exports.serverUrl = baseUrl
+      if (success) success(baseUrl)
+    }, error, 'SambaPlugin', 'startServer', null)
+  },
+
+  stopServer(success, error) {
+    module.exports.serverUrl = null
+    exec(success, error, 'SambaPlugin', 'stopServer', null)
+  },
+
+  connect(host, success, error) {
+    exec(success, error, 'SambaPlugin', 'connect', [ host ])
+  },
+
+  poolStats(success, error) {
+    exec(success, error, 'SambaPlugin', 'poolStats', null)
+  },
+
+  executorStats(success, error) {
+    exec(success, error, 'SambaPlugin', 'executorStats', null)
+  },
+
+  galleryStats(success, error) {
+    exec(success, error, 'SambaPlugin', 'galleryStats', null)
+  },
+
+  mediaStats(success, error) {
+    exec(success, error, 'SambaPlugin', 'mediaStats', null)
+  },
+
+  localUrl(smbPath) {
+    const serverUrl = module.exports.serverUrl
+    if (!serverUrl) return null
+    return serverUrl + smbPath.replace(/^smb:\/\//, '').split('/').map(encodeURIComponent).join('/')
   }
 
 }